@@ -49,6 +49,8 @@ public class WebAuthnServiceImpl extends XWikiAuthServiceImpl
 
     private static final String WEBAUTHN_SRID = "webauthn.srid";
 
+    private static final String LOGIN_ACTION = "login";
+
     private WebAuthnConfiguration configuration = Utils.getComponent(WebAuthnConfiguration.class);
 
     //private WebAuthnRegistrationManager users = Utils.getComponent(WebAuthnRegistrationManager.class);
@@ -79,27 +81,24 @@ public class WebAuthnServiceImpl extends XWikiAuthServiceImpl
 
     private void checkAuthWebAuthn(XWikiContext context) throws Exception
     {
-        LOGGER.debug("Checking if WebAuthn was skipped");
-
         // Check if WebAuthn is skipped or not and remember it
-        if (this.configuration.isSkipped()) {
-            maybeStoreRequestParameterInSession(context.getRequest(), WebAuthnConfiguration.PROP_SKIPPED,
-                Boolean.class);
+        if (this.configuration.isSkipped(context.getRequest())) {
+            return;
+        }
 
+        // Fast path for the most common case: a page view without any WebAuthn related parameter
+        String webauthnUser = context.getRequest().getParameter(WebAuthnConfiguration.PROP_XWIKIUSER);
+        if (webauthnUser == null && !LOGIN_ACTION.equals(context.getAction())) {
             return;
-        } else {
-            maybeStoreRequestParameterInSession(context.getRequest(), WebAuthnConfiguration.PROP_SKIPPED,
-                Boolean.class);
         }
 
         // Make sure the session is free from anything related to a previously authenticated user
         // in case we just did a logout
-        if(this.configuration.getWebAuthnUser() != null) {
+        if (this.configuration.getWebAuthnUser() != null) {
             // this.users.logout();
         }
 
         // authenticate the WebAuthn user
-        String webauthnUser = context.getRequest().getParameter(WebAuthnConfiguration.PROP_XWIKIUSER);
         if (webauthnUser != null) {
             authenticate(context);
 
@@ -107,9 +106,7 @@ public class WebAuthnServiceImpl extends XWikiAuthServiceImpl
         }
 
         // Call WebAuthn Authenticator when someone requests to login
-        if (context.getAction().equals("login")) {
-            showLoginWebAuthn(context);
-        }
+        showLoginWebAuthn(context);
     }
 
 
@@ -163,18 +160,6 @@ public class WebAuthnServiceImpl extends XWikiAuthServiceImpl
         return savedRequestId;
     }
 
-    // Maybe useful in future(maybeStoreRequestParameterInSession), will remove if not
-    private void maybeStoreRequestParameterInSession(XWikiRequest request, String key,
-        Class<Boolean> booleanClass)
-    {
-        String value = request.get(key);
-        this.LOGGER.debug("Store the request parameter in session");
-        if (value != null) {
-            request.getSession().setAttribute(key, value);
-        }
-    }
-
-
     private void maybeStoreRequestParameterURLInSession(XWikiRequest request, String key) throws MalformedURLException
     {
         String value = request.get(key);
@@ -190,7 +175,7 @@ public class WebAuthnServiceImpl extends XWikiAuthServiceImpl
         // If WebAuthn is not skipped and we can't authenticate user, throw error
         LOGGER.debug("Show the login screen to the user");
 
-        if (!this.configuration.isSkipped()) {
+        if (!this.configuration.isSkipped(context.getRequest())) {
             try {
                 showLoginWebAuthn(context);
             } catch (Exception e) {
@@ -0,0 +1,288 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.webauthn.internal.event.WebAuthnCeremonyConsumedEvent;
+import org.xwiki.contrib.webauthn.internal.util.RandomGenerator;
+import org.xwiki.observation.ObservationManager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Seal the pending WebAuthn ceremonies so that they can be handed to the client instead of being kept in memory.
+ * <p>
+ * A sealed ceremony is made of a version byte, the type of the ceremony, the time it was issued, the wiki it was
+ * started on, the JSON payload and a HMAC-SHA256 of all the previous bytes. Any node sharing the same secret can unseal
+ * it, but only as the same type of ceremony and from the same wiki. Only the MAC of the consumed ceremonies is kept, to
+ * make sure a ceremony is finished only once. The consumed MACs are sent to the other members of the cluster with a
+ * {@link WebAuthnCeremonyConsumedEvent}. They are remembered for as long as the ceremony they belong to could be
+ * unsealed, whatever their number, so that no amount of sealed ceremonies can push out a consumed one.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = CeremonySealer.class)
+@Singleton
+public class CeremonySealer implements Initializable
+{
+    private static final byte VERSION = 2;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * The version, the type, the timestamp and the length of the wiki identifier.
+     */
+    private static final int HEADER_LENGTH = 2 + Long.BYTES + Short.BYTES;
+
+    /**
+     * The type of a sealed ceremony.
+     *
+     * @version $Id$
+     */
+    public enum Type
+    {
+        /**
+         * A credential registration.
+         */
+        REGISTRATION,
+
+        /**
+         * An authentication assertion.
+         */
+        ASSERTION
+    }
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private RandomGenerator random;
+
+    @Inject
+    private ObservationManager observation;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final ObjectMapper jsonMapper = JacksonCodecs.json();
+
+    private final Clock clock = Clock.systemUTC();
+
+    private Cache<ByteArray, Boolean> consumed;
+
+    private SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::createMac);
+
+    private long maxAge;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String secret = this.configuration.getCeremonySecret();
+
+        byte[] keyBytes;
+        if (StringUtils.isEmpty(secret)) {
+            keyBytes = this.random.generateRandom(MAC_LENGTH).getBytes();
+
+            if (this.configuration.isCeremonyStateless()) {
+                this.logger.warn("No [{}] configured, using a random one: stateless WebAuthn ceremonies won't work"
+                    + " across the members of a cluster", WebAuthnConfiguration.PROP_CEREMONY_SECRET);
+            }
+        } else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+
+        // A sealed ceremony can be finished as long as a ceremony kept in memory
+        this.maxAge = TimeUnit.SECONDS.toMillis(Math.max(1, this.configuration.getCeremonyTimeout()));
+        // Bounded by time only: evicting a consumed ceremony before it expires would allow replaying it
+        this.consumed = CacheBuilder.newBuilder().expireAfterWrite(this.maxAge, TimeUnit.MILLISECONDS).build();
+
+        // Fail early if the algorithm is not available
+        try {
+            Mac.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new InitializationException("Failed to initialize the WebAuthn ceremony sealer", e);
+        }
+    }
+
+    /**
+     * @param type the type of the ceremony
+     * @param payload the ceremony to seal
+     * @return the sealed ceremony, bound to the current wiki
+     */
+    public ByteArray seal(Type type, JsonNode payload)
+    {
+        byte[] json;
+        try {
+            json = this.jsonMapper.writeValueAsBytes(payload);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize the WebAuthn ceremony", e);
+        }
+        byte[] wiki = getWiki();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + wiki.length + json.length + MAC_LENGTH);
+        buffer.put(VERSION);
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(this.clock.millis());
+        buffer.putShort((short) wiki.length);
+        buffer.put(wiki);
+        buffer.put(json);
+        buffer.put(mac(buffer.array(), buffer.position()));
+
+        return new ByteArray(buffer.array());
+    }
+
+    /**
+     * Verify and decode a sealed ceremony. A given ceremony can only be unsealed once.
+     *
+     * @param type the expected type of the ceremony
+     * @param sealed the sealed ceremony
+     * @return the ceremony, or empty if it's invalid, expired, of another type, started on another wiki or was already
+     *         consumed
+     */
+    public Optional<JsonNode> unseal(Type type, ByteArray sealed)
+    {
+        byte[] bytes = sealed.getBytes();
+        if (bytes.length <= HEADER_LENGTH + MAC_LENGTH || bytes[0] != VERSION) {
+            return Optional.empty();
+        }
+
+        int dataLength = bytes.length - MAC_LENGTH;
+        byte[] mac = Arrays.copyOfRange(bytes, dataLength, bytes.length);
+        if (!MessageDigest.isEqual(mac, mac(bytes, dataLength))) {
+            this.logger.debug("Invalid WebAuthn ceremony seal");
+
+            return Optional.empty();
+        }
+
+        // The MAC is valid so the header can be trusted
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, dataLength - 1);
+        if (buffer.get() != type.ordinal()) {
+            this.logger.debug("WebAuthn ceremony of another type than [{}]", type);
+
+            return Optional.empty();
+        }
+
+        long age = this.clock.millis() - buffer.getLong();
+        if (age < 0 || age > this.maxAge) {
+            this.logger.debug("Expired WebAuthn ceremony");
+
+            return Optional.empty();
+        }
+
+        byte[] wiki = new byte[Short.toUnsignedInt(buffer.getShort())];
+        if (wiki.length > buffer.remaining()) {
+            return Optional.empty();
+        }
+        buffer.get(wiki);
+        if (!Arrays.equals(wiki, getWiki())) {
+            this.logger.debug("WebAuthn ceremony started on wiki [{}]", new String(wiki, StandardCharsets.UTF_8));
+
+            return Optional.empty();
+        }
+
+        ByteArray macBytes = new ByteArray(mac);
+        if (this.consumed.asMap().putIfAbsent(macBytes, Boolean.TRUE) != null) {
+            this.logger.debug("WebAuthn ceremony already consumed");
+
+            return Optional.empty();
+        }
+        this.observation.notify(new WebAuthnCeremonyConsumedEvent(), macBytes.getBase64Url(), null);
+
+        try {
+            return Optional.of(this.jsonMapper.readTree(Arrays.copyOfRange(bytes, buffer.position(), dataLength)));
+        } catch (IOException e) {
+            this.logger.debug("Failed to parse the WebAuthn ceremony", e);
+
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Remember a ceremony consumed by another member of the cluster.
+     *
+     * @param mac the MAC of the consumed sealed ceremony
+     */
+    public void markConsumed(ByteArray mac)
+    {
+        this.consumed.put(mac, Boolean.TRUE);
+    }
+
+    private byte[] getWiki()
+    {
+        return this.xcontextProvider.get().getWikiId().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] mac(byte[] data, int length)
+    {
+        // doFinal resets the Mac, so that it's ready for the next seal of the same thread
+        Mac mac = this.macs.get();
+        mac.update(data, 0, length);
+
+        return mac.doFinal();
+    }
+
+    private Mac createMac()
+    {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.key);
+
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to compute the WebAuthn ceremony seal", e);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.webauthn.data.ByteArray;
+
+import lombok.Value;
+
+/**
+ * Bounded store of the WebAuthn ceremonies (registrations and assertions) started but not yet finished.
+ * <p>
+ * A new ceremony is refused when the client IP address or the user already has too many ceremonies in progress, so
+ * that a flood of started ceremonies coming from a few clients cannot fill the store. Only the authenticated
+ * ceremonies (registrations) count against the user: anybody can start an assertion for any username, so a per-user
+ * quota on assertions would let anybody lock a user out. For the same reason the unauthenticated ceremonies can only
+ * use part of the capacity, the rest being reserved to the authenticated ones, and when they run out of room the
+ * oldest unauthenticated ceremony is dropped to make room for the new one instead of refusing it: a flood coming from
+ * many clients delays the logins in progress but never blocks the new ones. The expired
+ * ceremonies are removed by a timing wheel with one slot per second, so the expiry cost does not depend on the number
+ * of ceremonies in progress.
+ * </p>
+ * <p>
+ * A ceremony can only be finished on the wiki it was started on and, when it was started by an authenticated user, by
+ * that same user.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = PendingCeremonyStore.class)
+@Singleton
+public class PendingCeremonyStore implements Initializable, Disposable
+{
+    private static final String UNKNOWN_IP = "unknown";
+
+    private static final String HEADER_FORWARDEDFOR = "X-Forwarded-For";
+
+    /**
+     * The share of the capacity, in percents, reserved to the ceremonies of authenticated users.
+     */
+    private static final int RESERVED_CAPACITY = 10;
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private WebAuthnMetrics metrics;
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<ByteArray, PendingCeremony> ceremonies = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> ceremoniesByIP = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<DocumentReference, AtomicInteger> ceremoniesByUser = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicInteger anonymousSize = new AtomicInteger();
+
+    private final AtomicLong currentTick = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    private final LongAdder refusals = new LongAdder();
+
+    private final LongAdder sheds = new LongAdder();
+
+    private List<Set<ByteArray>> wheel;
+
+    private int capacity;
+
+    private int anonymousCapacity;
+
+    private int timeout;
+
+    private int maxPerIP;
+
+    private int maxPerUser;
+
+    private Set<String> trustedProxies;
+
+    private ScheduledExecutorService executor;
+
+    @Value
+    private static class PendingCeremony
+    {
+        Object request;
+
+        String ip;
+
+        String wiki;
+
+        DocumentReference user;
+
+        long expirationTick;
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.capacity = this.configuration.getCeremonyCapacity();
+        this.anonymousCapacity = this.capacity - this.capacity * RESERVED_CAPACITY / 100;
+        this.timeout = Math.max(1, this.configuration.getCeremonyTimeout());
+        this.maxPerIP = this.configuration.getCeremonyMaxPerIP();
+        this.maxPerUser = this.configuration.getCeremonyMaxPerUser();
+        this.trustedProxies = new HashSet<>(this.configuration.getCeremonyTrustedProxies());
+
+        // One slot per second of timeout, plus the slot currently being expired
+        this.wheel = new ArrayList<>(this.timeout + 1);
+        for (int i = 0; i <= this.timeout; ++i) {
+            this.wheel.add(ConcurrentHashMap.newKeySet());
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("WebAuthn pending ceremony expiration").daemon(true)
+                .build());
+        this.executor.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+
+        this.metrics.gauge("ceremonies.size", this::size);
+        this.metrics.gauge("ceremonies.hitRate", () -> {
+            long taken = this.hits.sum();
+            long requests = taken + this.misses.sum();
+
+            return requests == 0 ? 1.0 : (double) taken / requests;
+        });
+        this.metrics.counter("ceremonies.evictions", this.expirations::sum);
+        this.metrics.counter("ceremonies.refusals", this.refusals::sum);
+        this.metrics.counter("ceremonies.sheds", this.sheds::sum);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Store a new ceremony in progress, if the quotas allow it.
+     *
+     * @param requestId the identifier of the ceremony
+     * @param request the ceremony
+     * @param owner the authenticated user starting the ceremony, who is the only one allowed to finish it and to count
+     *            the ceremony against, if any
+     * @return true if the ceremony was stored, false if it was refused because of the quotas
+     */
+    public boolean put(ByteArray requestId, Object request, Optional<DocumentReference> owner)
+    {
+        // Not tracked when the quota is disabled
+        String ip = this.maxPerIP > 0 ? getClientIP() : null;
+        DocumentReference user = owner.orElse(null);
+
+        if (ip != null && !acquire(this.ceremoniesByIP, ip, this.maxPerIP)) {
+            this.refusals.increment();
+            this.logger.debug("Too many WebAuthn ceremonies in progress for IP address [{}]", ip);
+
+            return false;
+        }
+        if (user != null && !acquire(this.ceremoniesByUser, user, this.maxPerUser)) {
+            if (ip != null) {
+                release(this.ceremoniesByIP, ip);
+            }
+            this.refusals.increment();
+            this.logger.debug("Too many WebAuthn ceremonies in progress for user [{}]", user);
+
+            return false;
+        }
+        if (!acquireCapacity(user == null)) {
+            if (ip != null) {
+                release(this.ceremoniesByIP, ip);
+            }
+            if (user != null) {
+                release(this.ceremoniesByUser, user);
+            }
+            this.refusals.increment();
+            this.logger.debug("Too many WebAuthn ceremonies in progress, refusing a new one");
+
+            return false;
+        }
+
+        long expirationTick = this.currentTick.get() + this.timeout;
+        PendingCeremony ceremony =
+            new PendingCeremony(request, ip, this.xcontextProvider.get().getWikiId(), user, expirationTick);
+        PendingCeremony previous = this.ceremonies.put(requestId, ceremony);
+        if (previous != null) {
+            // Should not happen with random identifiers
+            release(previous);
+        }
+        getSlot(expirationTick).add(requestId);
+
+        return true;
+    }
+
+    /**
+     * Remove and return a ceremony in progress. A given ceremony can only be taken once, from the wiki it was started
+     * on and by the user who started it.
+     *
+     * @param <T> the type of the ceremony
+     * @param requestId the identifier of the ceremony
+     * @param type the expected type of the ceremony
+     * @return the ceremony, or null if there's no such ceremony in progress for the current wiki and user or it expired
+     */
+    public <T> T take(ByteArray requestId, Class<T> type)
+    {
+        PendingCeremony ceremony = this.ceremonies.get(requestId);
+        if (ceremony == null || !type.isInstance(ceremony.getRequest()) || !isCurrentContext(ceremony)
+            || !this.ceremonies.remove(requestId, ceremony)) {
+            this.misses.increment();
+
+            return null;
+        }
+
+        release(ceremony);
+        getSlot(ceremony.getExpirationTick()).remove(requestId);
+
+        // The wheel might not have caught up yet
+        if (ceremony.getExpirationTick() <= this.currentTick.get()) {
+            this.misses.increment();
+
+            return null;
+        }
+
+        this.hits.increment();
+
+        return type.cast(ceremony.getRequest());
+    }
+
+    /**
+     * @return the number of ceremonies in progress
+     */
+    public int size()
+    {
+        return this.size.get();
+    }
+
+    private void tick()
+    {
+        try {
+            long tick = this.currentTick.incrementAndGet();
+
+            Set<ByteArray> slot = getSlot(tick);
+            for (ByteArray requestId : slot) {
+                PendingCeremony ceremony = this.ceremonies.get(requestId);
+                if (ceremony == null) {
+                    slot.remove(requestId);
+                } else if (ceremony.getExpirationTick() <= tick && this.ceremonies.remove(requestId, ceremony)) {
+                    slot.remove(requestId);
+                    release(ceremony);
+                    this.expirations.increment();
+                }
+            }
+        } catch (Exception e) {
+            // Never let an exception kill the scheduled task
+            this.logger.error("Failed to expire the WebAuthn ceremonies", e);
+        }
+    }
+
+    private boolean acquireCapacity(boolean anonymous)
+    {
+        if (!anonymous) {
+            return acquire(this.size, this.capacity);
+        }
+
+        // Make room by dropping the oldest unauthenticated ceremony rather than refusing the new one
+        return acquireAnonymousCapacity() || (shedOldestAnonymous() && acquireAnonymousCapacity());
+    }
+
+    private boolean acquireAnonymousCapacity()
+    {
+        if (!acquire(this.anonymousSize, this.anonymousCapacity)) {
+            return false;
+        }
+        if (!acquire(this.size, this.capacity)) {
+            this.anonymousSize.decrementAndGet();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean shedOldestAnonymous()
+    {
+        // All the ceremonies have the same timeout, so the next slots to expire hold the oldest ceremonies
+        long tick = this.currentTick.get();
+        for (int i = 0; i < this.wheel.size(); ++i) {
+            Set<ByteArray> slot = getSlot(tick + i);
+            for (ByteArray requestId : slot) {
+                PendingCeremony ceremony = this.ceremonies.get(requestId);
+                if (ceremony != null && ceremony.getUser() == null && this.ceremonies.remove(requestId, ceremony)) {
+                    slot.remove(requestId);
+                    release(ceremony);
+                    this.sheds.increment();
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Set<ByteArray> getSlot(long tick)
+    {
+        return this.wheel.get((int) (tick % this.wheel.size()));
+    }
+
+    private boolean isCurrentContext(PendingCeremony ceremony)
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        if (!ceremony.getWiki().equals(xcontext.getWikiId())) {
+            this.logger.debug("WebAuthn ceremony started on wiki [{}] finished on wiki [{}]", ceremony.getWiki(),
+                xcontext.getWikiId());
+
+            return false;
+        }
+        if (ceremony.getUser() != null && !Objects.equals(ceremony.getUser(), xcontext.getUserReference())) {
+            this.logger.debug("WebAuthn ceremony started by user [{}] finished by user [{}]", ceremony.getUser(),
+                xcontext.getUserReference());
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private String getClientIP()
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        if (xcontext == null || xcontext.getRequest() == null || xcontext.getRequest().getRemoteAddr() == null) {
+            return UNKNOWN_IP;
+        }
+
+        String ip = xcontext.getRequest().getRemoteAddr();
+        if (this.trustedProxies.contains(ip)) {
+            // Each proxy appends the address it received the request from: the client is the last address which is not
+            // one of our proxies, the addresses before it are chosen by the client
+            String[] forwardedFor = StringUtils.split(xcontext.getRequest().getHeader(HEADER_FORWARDEDFOR), ',');
+            if (forwardedFor != null) {
+                for (int i = forwardedFor.length - 1; i >= 0; --i) {
+                    String forwardedIP = forwardedFor[i].trim();
+                    if (!forwardedIP.isEmpty()) {
+                        ip = forwardedIP;
+                        if (!this.trustedProxies.contains(ip)) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        return ip;
+    }
+
+    private void release(PendingCeremony ceremony)
+    {
+        this.size.decrementAndGet();
+        if (ceremony.getUser() == null) {
+            this.anonymousSize.decrementAndGet();
+        }
+        if (ceremony.getIp() != null) {
+            release(this.ceremoniesByIP, ceremony.getIp());
+        }
+        if (ceremony.getUser() != null) {
+            release(this.ceremoniesByUser, ceremony.getUser());
+        }
+    }
+
+    private static boolean acquire(AtomicInteger counter, int max)
+    {
+        if (counter.incrementAndGet() > max) {
+            counter.decrementAndGet();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private static <K> boolean acquire(ConcurrentMap<K, AtomicInteger> counters, K key, int max)
+    {
+        boolean[] acquired = new boolean[1];
+        counters.compute(key, (k, counter) -> {
+            AtomicInteger current = counter != null ? counter : new AtomicInteger();
+            acquired[0] = acquire(current, max);
+
+            return current.get() > 0 ? current : null;
+        });
+
+        return acquired[0];
+    }
+
+    private static <K> void release(ConcurrentMap<K, AtomicInteger> counters, K key)
+    {
+        counters.computeIfPresent(key, (k, counter) -> counter.decrementAndGet() > 0 ? counter : null);
+    }
+}
@@ -17,86 +17,196 @@
  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
  */
-/*
 package org.xwiki.contrib.webauthn.internal;
 
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.contrib.webauthn.internal.data.CredentialRegistration;
+import org.xwiki.contrib.webauthn.internal.event.WebAuthnCredentialAddedEvent;
+import org.xwiki.contrib.webauthn.internal.event.WebAuthnCredentialRemovedEvent;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+import org.xwiki.contrib.webauthn.internal.store.SignatureCountWriter;
+import org.xwiki.contrib.webauthn.internal.store.WebAuthnUserStore;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.query.QueryException;
 
-import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.yubico.internal.util.CollectionUtil;
 import com.yubico.webauthn.AssertionResult;
 import com.yubico.webauthn.CredentialRepository;
 import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
-*/
+
+import lombok.Value;
 
 /**
  * Implementation of CredentialRepository. An abstraction of the database lookups needed by the library.
  * <p>This is used by RelyingParty (XWiki) to look up credentials, usernames, user handles from
  * usernames, user handles and credential IDs, etc.</p>
+ * <p>The users, credentials and user handles are those of the current wiki: the caches are keyed by wiki so that
+ * two wikis never see each other's users.</p>
  *
  * @version $Id$
  */
-
-/*
 @Component(roles = RegistrationStorage.class)
 @Singleton
-public class RegistrationStorage implements CredentialRepository
+public class RegistrationStorage implements CredentialRepository, Initializable
 {
     @Inject
     private Logger logger;
 
+    @Inject
+    private WebAuthnUserStore store;
+
+    @Inject
+    private SignatureCountWriter signatureCountWriter;
+
+    @Inject
+    private ObservationManager observation;
+
+    @Inject
+    private WebAuthnMetrics metrics;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
     /**
-     * Build a cache which should be automatically removed once after 1 day has elapsed after
-     * the it's creation, the most recent replacement of its value, or its last access.
-     *
-     * TODO: Change this ASAP
+     * Bounded read cache of the registrations stored in the user profiles. The registrations of a user are loaded
+     * from the store on the first access and every modification is written to the store before being applied here,
+     * so an entry leaving the cache is simply reloaded the next time it's needed.
+     * <p>
+     * The sets are immutable: a modification atomically replaces the set of the user, so readers never need to lock
+     * or copy anything.
      */
-/*
-    private final Cache<String, Set<CredentialRegistration>> storage =
-        CacheBuilder.newBuilder().maximumSize(1000).expireAfterAccess(1, TimeUnit.DAYS).build();
-    */
+    private final LoadingCache<WikiUser, Set<CredentialRegistration>> storage =
+        CacheBuilder.newBuilder().maximumSize(1000).expireAfterAccess(1, TimeUnit.DAYS).recordStats()
+            .removalListener(this::onRemoval).build(new CacheLoader<WikiUser, Set<CredentialRegistration>>()
+            {
+                @Override
+                public Set<CredentialRegistration> load(WikiUser user) throws XWikiException
+                {
+                    return loadRegistrations(user);
+                }
+            });
+
+    /**
+     * Secondary index of the registrations held in {@link #storage}, keyed by credential ID, so that the assertion
+     * lookups don't have to scan the registrations of every user.
+     */
+    private final ConcurrentMap<WikiId, CredentialRegistration> registrationsByCredentialId =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Reverse index of the user handles of the users held in {@link #storage}, used for usernameless assertions.
+     */
+    private final ConcurrentMap<WikiId, String> usernamesByUserHandle = new ConcurrentHashMap<>();
+
+    /**
+     * The current signature count of each credential held in {@link #storage}. The cached registrations are never
+     * modified after a login, concurrent assertions only race on these counters which can only move forward.
+     */
+    private final ConcurrentMap<WikiId, AtomicLong> signatureCounts = new ConcurrentHashMap<>();
+
+    /**
+     * A user of a given wiki.
+     */
+    @Value
+    private static class WikiUser
+    {
+        String wiki;
+
+        String username;
+    }
+
+    /**
+     * A credential ID or a user handle of a given wiki.
+     */
+    @Value
+    private static class WikiId
+    {
+        String wiki;
+
+        ByteArray id;
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.metrics.cacheMetrics("registrations", this.storage);
+    }
+
     /**
      * Add webauthn credentials registration for a standard xwiki user
      *
-     * @param username the standard xwiki username
+     * @param userReference the reference of the profile of the standard xwiki user, in its own wiki
      * @param reg properties associated with a WebAuthn credential
-     * @return an error if credentials for the username already exists
+     * @return false if the user profile does not exist
      */
-    /*
-    public boolean addRegistrationByUsername(String username, CredentialRegistration reg)
+    public boolean addRegistration(DocumentReference userReference, CredentialRegistration reg)
     {
         try {
-            return storage.get(username, HashSet::new).add(reg);
-        } catch (ExecutionException e) {
+            if (!this.store.addRegistration(userReference, reg)) {
+                return false;
+            }
+        } catch (XWikiException e) {
             this.logger.error("Failed to add registration", e);
             throw new RuntimeException(e);
         }
+
+        // If the user is not cached it will be loaded (with the new registration) on the next access
+        WikiUser user = new WikiUser(userReference.getWikiReference().getName(), userReference.getName());
+        Set<CredentialRegistration> registrations = storage.asMap().computeIfPresent(user,
+            (key, current) -> current.contains(reg) ? current
+                : ImmutableSet.<CredentialRegistration>builder().addAll(current).add(reg).build());
+        if (registrations != null) {
+            index(user, reg);
+        }
+
+        this.observation.notify(new WebAuthnCredentialAddedEvent(user.getWiki(), user.getUsername()),
+            reg.getCredential().getCredentialId().getBase64Url(), null);
+
+        return true;
     }
 
     /**
      * @return  all registrations for the given userHandle.
      */
-/*
     public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle)
     {
-        return storage.asMap().values().stream().flatMap(Collection::stream)
+        Optional<String> username = getUsernameForUserHandle(userHandle);
+        if (!username.isPresent()) {
+            return Collections.emptyList();
+        }
+
+        return getRegistrationsByUsername(username.get()).stream()
             .filter(credentialRegistration ->
                 userHandle.equals(credentialRegistration.getUserIdentity().getId()))
             .collect(Collectors.toList());
@@ -106,7 +216,6 @@ public class RegistrationStorage implements CredentialRepository
      * @return user handle corresponding to the given username, inverse of
      * {@link #getUsernameForUserHandle(ByteArray)}
      */
-/*
     @Override
     public Optional<ByteArray> getUserHandleForUsername(String username)
     {
@@ -119,19 +228,33 @@ public class RegistrationStorage implements CredentialRepository
      * @return username corresponding to the given user handle, inverse of
      * {@link #getUserHandleForUsername(String)}
      */
-/*
     @Override
     public Optional<String> getUsernameForUserHandle(ByteArray userHandle)
     {
-        return getRegistrationsByUserHandle(userHandle).stream()
-            .findAny()
-            .map(CredentialRegistration::getUsername);
+        String username = this.usernamesByUserHandle.get(getId(userHandle));
+        if (username != null) {
+            return Optional.of(username);
+        }
+
+        // The user is not cached, search it in the store
+        Optional<String> storedUsername;
+        try {
+            storedUsername = this.store.searchUsername(userHandle);
+        } catch (QueryException e) {
+            this.logger.error("Failed to search the user with handle [{}]", userHandle, e);
+
+            return Optional.empty();
+        }
+
+        // Warm up the cache for the assertion which is most probably going to follow
+        storedUsername.ifPresent(this::getRegistrationsByUsername);
+
+        return storedUsername;
     }
 
     /**
      * @return credential IDs of all credentials registered to the given username.
      */
-/*
     @Override
     public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username)
     {
@@ -145,11 +268,10 @@ public class RegistrationStorage implements CredentialRepository
     /**
      * @return all the registrations associated with the given XWiki username
      */
-/*
     public Collection<CredentialRegistration> getRegistrationsByUsername(String username)
     {
         try {
-            return storage.get(username, HashSet::new);
+            return storage.get(getUser(username));
         } catch (ExecutionException e) {
             this.logger.error("Registration lookup failed", e);
             throw new RuntimeException(e);
@@ -159,47 +281,89 @@ public class RegistrationStorage implements CredentialRepository
     /**
      * @return all the registrations associated with the given XWiki username and the credential Id
      */
-/*
     public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray id)
     {
-        try {
-            return storage.get(username, HashSet::new).stream()
-                .filter(credReg -> id.equals(credReg.getCredential().getCredentialId()))
-                .findFirst();
-        } catch (ExecutionException e) {
-            this.logger.error("Registration lookup failed", e);
-            throw new RuntimeException(e);
+        CredentialRegistration registration = this.registrationsByCredentialId.get(getId(id));
+        if (registration != null) {
+            return Optional.of(registration).filter(credReg -> username.equals(credReg.getUsername()));
         }
+
+        return getRegistrationsByUsername(username).stream()
+            .filter(credReg -> id.equals(credReg.getCredential().getCredentialId()))
+            .findFirst();
     }
 
     /**
      * Remove a registration associated with the given XWiki username
      */
-/*
     public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration)
     {
+        ByteArray credentialId = credentialRegistration.getCredential().getCredentialId();
+
+        boolean removed;
         try {
-            return storage.get(username, HashSet::new).remove(credentialRegistration);
-        } catch (ExecutionException e) {
+            removed = this.store.removeRegistration(username, credentialId);
+        } catch (XWikiException e) {
             this.logger.error("Failed to remove registration", e);
             throw new RuntimeException(e);
         }
+
+        WikiUser user = getUser(username);
+        Set<CredentialRegistration> registrations = storage.asMap().computeIfPresent(user,
+            (key, current) -> ImmutableSet.copyOf(
+                Sets.filter(current, credReg -> !credentialId.equals(credReg.getCredential().getCredentialId()))));
+        if (registrations != null) {
+            WikiId id = new WikiId(user.getWiki(), credentialId);
+            this.registrationsByCredentialId.remove(id);
+            this.signatureCounts.remove(id);
+            if (registrations.isEmpty()) {
+                this.usernamesByUserHandle.remove(
+                    new WikiId(user.getWiki(), credentialRegistration.getUserIdentity().getId()), username);
+            }
+        }
+
+        if (removed) {
+            this.observation.notify(new WebAuthnCredentialRemovedEvent(user.getWiki(), username),
+                credentialId.getBase64Url(), null);
+        }
+
+        return removed;
     }
 
     /**
      * Remove all registrations associated with the given XWiki username
      */
-/*
     public boolean removeAllRegistrations(String username)
     {
-        storage.invalidate(username);
+        try {
+            this.store.removeAllRegistrations(username);
+        } catch (XWikiException e) {
+            this.logger.error("Failed to remove registrations", e);
+            throw new RuntimeException(e);
+        }
+
+        // The removal listener takes care of the indexes
+        storage.invalidate(getUser(username));
+
+        this.observation.notify(new WebAuthnCredentialRemovedEvent(getWiki(), username), null, null);
+
         return true;
     }
 
+    /**
+     * Forget the cached registrations of a user, they will be loaded again from the store on the next access.
+     *
+     * @param wiki the identifier of the wiki of the user
+     * @param username the name of the standard XWiki user
+     */
+    public void invalidate(String wiki, String username)
+    {
+        storage.invalidate(new WikiUser(wiki, username));
+    }
+
     /**
      * Update signature count after every successful authentication using webauthn credentials
      */
-/*
     public void updateSignatureCount(AssertionResult result)
     {
         CredentialRegistration registration =
@@ -210,17 +374,63 @@ public class RegistrationStorage implements CredentialRepository
                             "Credential \"%s\" is not registered to user \"%s\"",
                             result.getCredentialId(), result.getUsername())));
 
-        Set<CredentialRegistration> regs = storage.getIfPresent(result.getUsername());
-        if (regs != null) {
-            regs.remove(registration);
-            regs.add(registration.withSignatureCount(result.getSignatureCount()));
+        if (advanceSignatureCount(getWiki(), registration, result.getSignatureCount())) {
+            // Saving the new count on every login would be too expensive, it's written to the store asynchronously
+            // and sent to the other members of the cluster with the save
+            this.signatureCountWriter.update(result.getUsername(), result.getCredentialId(),
+                result.getSignatureCount());
+        }
+    }
+
+    /**
+     * Apply a signature count update made elsewhere (e.g. by another member of the cluster) to the cached credential,
+     * without saving it.
+     *
+     * @param wiki the identifier of the wiki of the user
+     * @param username the name of the standard XWiki user
+     * @param credentialId the identifier of the WebAuthn credential
+     * @param signatureCount the new signature count
+     */
+    public void setSignatureCount(String wiki, String username, ByteArray credentialId, long signatureCount)
+    {
+        CredentialRegistration registration = this.registrationsByCredentialId.get(new WikiId(wiki, credentialId));
+        if (registration != null && username.equals(registration.getUsername())) {
+            advanceSignatureCount(wiki, registration, signatureCount);
         }
     }
 
+    /**
+     * Move the signature count of a credential forward, never backward.
+     *
+     * @return false if the current count is already greater or equal
+     */
+    private boolean advanceSignatureCount(String wiki, CredentialRegistration registration, long signatureCount)
+    {
+        AtomicLong counter =
+            this.signatureCounts.computeIfAbsent(new WikiId(wiki, registration.getCredential().getCredentialId()),
+                id -> new AtomicLong(registration.getSignatureCount()));
+
+        long current;
+        do {
+            current = counter.get();
+            if (signatureCount <= current) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, signatureCount));
+
+        return true;
+    }
+
+    private long getSignatureCount(CredentialRegistration registration)
+    {
+        AtomicLong counter = this.signatureCounts.get(getId(registration.getCredential().getCredentialId()));
+
+        return counter != null ? counter.get() : registration.getSignatureCount();
+    }
+
     /**
      * Check whether webauthn credentials exists for a given XWiki username or not
      */
-/*
     boolean userExists(String username)
     {
         return !getRegistrationsByUsername(username).isEmpty();
@@ -233,28 +443,32 @@ public class RegistrationStorage implements CredentialRepository
      * <p>The returned {@link RegisteredCredential} is not expected to be long-lived. It may be read
      * directly from a database or assembled from other components.</p>
      */
-/*
     @Override
     public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle)
     {
+        long start = this.metrics.start();
+        Optional<RegisteredCredential> credential = doLookup(credentialId, userHandle);
+        this.metrics.stop("credentials.lookup", start);
+
+        return credential;
+    }
+
+    private Optional<RegisteredCredential> doLookup(ByteArray credentialId, ByteArray userHandle)
+    {
+        WikiId id = getId(credentialId);
+        CredentialRegistration registration = this.registrationsByCredentialId.get(id);
+        if (registration == null) {
+            // Load the registrations of the user, if not already cached
+            getUsernameForUserHandle(userHandle).ifPresent(this::getRegistrationsByUsername);
+            registration = this.registrationsByCredentialId.get(id);
+        }
 
-        Optional<CredentialRegistration> registrationMaybe =
-            storage.asMap().values().stream()
-                .flatMap(Collection::stream)
-                .filter(credReg -> credentialId.equals(credReg.getCredential().getCredentialId()))
-                .findAny();
+        Optional<CredentialRegistration> registrationMaybe = Optional.ofNullable(registration);
 
         this.logger.debug(
             "Lookup credential ID: {}, user handle: {}, result: {}", credentialId, userHandle, registrationMaybe);
 
-        return registrationMaybe.flatMap(
-            registration -> Optional.of(
-                RegisteredCredential.builder()
-                    .credentialId(registration.getCredential().getCredentialId())
-                    .userHandle(registration.getUserIdentity().getId())
-                    .publicKeyCose(registration.getCredential().getPublicKeyCose())
-                    .signatureCount(registration.getSignatureCount())
-                    .build()));
+        return registrationMaybe.map(this::toRegisteredCredential);
     }
 
     /**
@@ -265,21 +479,128 @@ public class RegistrationStorage implements CredentialRepository
      * circumstances this method should only return zero or one credential (this is an expected
      * consequence, not an interface requirement).
      */
-/*
     @Override
     public Set<RegisteredCredential> lookupAll(ByteArray credentialId)
     {
+        long start = this.metrics.start();
+        Set<RegisteredCredential> credentials = doLookupAll(credentialId);
+        this.metrics.stop("credentials.lookupAll", start);
+
+        return credentials;
+    }
+
+    private Set<RegisteredCredential> doLookupAll(ByteArray credentialId)
+    {
+        WikiId id = getId(credentialId);
+        CredentialRegistration registration = this.registrationsByCredentialId.get(id);
+        if (registration == null) {
+            try {
+                this.store.searchCredentialUsername(credentialId).ifPresent(this::getRegistrationsByUsername);
+            } catch (QueryException e) {
+                this.logger.error("Failed to search the user of credential [{}]", credentialId, e);
+                throw new RuntimeException(e);
+            }
+            registration = this.registrationsByCredentialId.get(id);
+        }
+
         return CollectionUtil.immutableSet(
-            storage.asMap().values().stream()
-                .flatMap(Collection::stream)
-                .filter(reg -> reg.getCredential().getCredentialId().equals(credentialId))
-                .map(reg -> RegisteredCredential.builder()
-                    .credentialId(reg.getCredential().getCredentialId())
-                    .userHandle(reg.getUserIdentity().getId())
-                    .publicKeyCose(reg.getCredential().getPublicKeyCose())
-                    .signatureCount(reg.getSignatureCount())
-                    .build())
-                .collect(Collectors.toSet()));
+            Optional.ofNullable(registration)
+                .map(this::toRegisteredCredential)
+                .map(Collections::singleton)
+                .orElseGet(Collections::emptySet));
+    }
+
+    /**
+     * Called by the cache, from the wiki of the user.
+     */
+    private Set<CredentialRegistration> loadRegistrations(WikiUser user) throws XWikiException
+    {
+        ImmutableSet.Builder<CredentialRegistration> registrations = ImmutableSet.builder();
+
+        for (CredentialRegistration storedRegistration : this.store.getRegistrations(user.getUsername())) {
+            // The store might not be up to date yet: keep the highest of the stored, queued and in-memory counts
+            CredentialRegistration registration = storedRegistration;
+            ByteArray credentialId = registration.getCredential().getCredentialId();
+            long signatureCount = registration.getSignatureCount();
+            OptionalLong pendingCount =
+                this.signatureCountWriter.getPendingSignatureCount(user.getUsername(), credentialId);
+            if (pendingCount.isPresent()) {
+                signatureCount = Math.max(signatureCount, pendingCount.getAsLong());
+            }
+            AtomicLong counter = this.signatureCounts.get(new WikiId(user.getWiki(), credentialId));
+            if (counter != null) {
+                signatureCount = Math.max(signatureCount, counter.get());
+            }
+            if (signatureCount > registration.getSignatureCount()) {
+                registration = registration.withSignatureCount(signatureCount);
+            }
+
+            registrations.add(registration);
+            index(user, registration);
+        }
+
+        return registrations.build();
+    }
+
+    private void index(WikiUser user, CredentialRegistration registration)
+    {
+        this.registrationsByCredentialId.put(
+            new WikiId(user.getWiki(), registration.getCredential().getCredentialId()), registration);
+        this.usernamesByUserHandle.put(new WikiId(user.getWiki(), registration.getUserIdentity().getId()),
+            user.getUsername());
+        advanceSignatureCount(user.getWiki(), registration, registration.getSignatureCount());
+    }
+
+    private String getWiki()
+    {
+        return this.xcontextProvider.get().getWikiId();
+    }
+
+    private WikiUser getUser(String username)
+    {
+        return new WikiUser(getWiki(), username);
+    }
+
+    private WikiId getId(ByteArray id)
+    {
+        return new WikiId(getWiki(), id);
+    }
+
+    private RegisteredCredential toRegisteredCredential(CredentialRegistration registration)
+    {
+        return RegisteredCredential.builder()
+            .credentialId(registration.getCredential().getCredentialId())
+            .userHandle(registration.getUserIdentity().getId())
+            .publicKeyCose(registration.getCredential().getPublicKeyCose())
+            .signatureCount(getSignatureCount(registration))
+            .build();
+    }
+
+    /**
+     * Keep the indexes in sync with entries leaving the cache (eviction, expiration or invalidation). Replaced sets
+     * are taken care of by the methods replacing them.
+     */
+    private void onRemoval(RemovalNotification<WikiUser, Set<CredentialRegistration>> notification)
+    {
+        if (notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+
+        // An invalidated user is reloaded right away and must not lose the counts which are not saved yet. The
+        // counters of the evicted users are dropped, their unsaved counts are still in the write-behind queue.
+        boolean evicted = notification.wasEvicted();
+
+        WikiUser user = notification.getKey();
+        Set<CredentialRegistration> registrations = notification.getValue();
+        if (user != null && registrations != null) {
+            for (CredentialRegistration registration : registrations) {
+                WikiId credentialId = new WikiId(user.getWiki(), registration.getCredential().getCredentialId());
+                if (this.registrationsByCredentialId.remove(credentialId, registration) && evicted) {
+                    this.signatureCounts.remove(credentialId);
+                }
+                this.usernamesByUserHandle.remove(new WikiId(user.getWiki(), registration.getUserIdentity().getId()),
+                    user.getUsername());
+            }
+        }
     }
 }
-*/
\ No newline at end of file
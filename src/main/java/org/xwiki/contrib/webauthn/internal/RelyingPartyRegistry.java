@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.attestation.TrustAnchorStore;
+import org.xwiki.wiki.descriptor.WikiDescriptor;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+
+import lombok.Value;
+
+/**
+ * The {@link RelyingParty} of each wiki, built from the configuration of the wiki on first use and rebuilt only when
+ * that configuration changes. All of them share the same credential repository.
+ *
+ * @version $Id$
+ */
+@Component(roles = RelyingPartyRegistry.class)
+@Singleton
+public class RelyingPartyRegistry
+{
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private RegistrationStorage credentialRepository;
+
+    @Inject
+    private TrustAnchorStore trustAnchors;
+
+    @Inject
+    private WikiDescriptorManager wikis;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<String, WikiRelyingParty> relyingParties = new ConcurrentHashMap<>();
+
+    @Value
+    private static class WikiRelyingParty
+    {
+        /**
+         * The configuration the relying party was built from.
+         */
+        WebAuthnConfigurationSnapshot configuration;
+
+        RelyingParty relyingParty;
+    }
+
+    /**
+     * @return the relying party of the current wiki
+     */
+    public RelyingParty get()
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        String wiki = xcontext.getWikiId();
+
+        // The snapshot is a new instance each time the configuration changes
+        WebAuthnConfigurationSnapshot snapshot = this.configuration.getSnapshot();
+        WikiRelyingParty wikiRelyingParty = this.relyingParties.get(wiki);
+        if (wikiRelyingParty == null || wikiRelyingParty.getConfiguration() != snapshot) {
+            String rpId = StringUtils.isNotEmpty(snapshot.getRpId()) ? snapshot.getRpId() : getWikiDomain(xcontext);
+            if (rpId == null) {
+                // The Host header is chosen by the client: a relying party built from it is only good for this
+                // request and must never be shared with the other requests of the wiki
+                this.logger.warn("No domain is known for wiki [{}], falling back on the request host for this request."
+                    + " Set [{}] to fix the relying party id.", wiki, WebAuthnConfiguration.PROP_RP_ID);
+
+                return createRelyingParty(snapshot, xcontext.getRequest().getServerName(), wiki);
+            }
+
+            wikiRelyingParty = new WikiRelyingParty(snapshot, createRelyingParty(snapshot, rpId, wiki));
+            this.relyingParties.put(wiki, wikiRelyingParty);
+        }
+
+        return wikiRelyingParty.getRelyingParty();
+    }
+
+    private RelyingParty createRelyingParty(WebAuthnConfigurationSnapshot snapshot, String rpId, String wiki)
+    {
+        this.logger.debug("Creating the WebAuthn relying party [{}] of wiki [{}]", rpId, wiki);
+
+        RelyingParty.RelyingPartyBuilder builder = RelyingParty.builder()
+            .identity(RelyingPartyIdentity.builder().id(rpId).name(snapshot.getRpName()).build())
+            .credentialRepository(this.credentialRepository)
+            .metadataService(Optional.of(this.trustAnchors))
+            .allowUntrustedAttestation(snapshot.isAllowUntrustedAttestation());
+
+        if (!snapshot.getOrigins().isEmpty()) {
+            builder.origins(snapshot.getOrigins());
+        }
+
+        if (StringUtils.isNotEmpty(snapshot.getAttestation())) {
+            try {
+                builder.attestationConveyancePreference(
+                    AttestationConveyancePreference.valueOf(snapshot.getAttestation().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                this.logger.warn("Ignoring unknown attestation conveyance preference [{}]", snapshot.getAttestation());
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return the domain of the wiki according to its server URL or else to its descriptor, or {@code null} when none
+     *         is configured
+     */
+    private String getWikiDomain(XWikiContext xcontext)
+    {
+        String wiki = xcontext.getWikiId();
+
+        try {
+            URL serverURL = xcontext.getWiki().getServerURL(wiki, xcontext);
+            if (serverURL != null) {
+                return serverURL.getHost();
+            }
+        } catch (MalformedURLException e) {
+            this.logger.warn("Invalid server URL for wiki [{}]: {}", wiki, ExceptionUtils.getRootCauseMessage(e));
+        }
+
+        try {
+            WikiDescriptor descriptor = this.wikis.getById(wiki);
+            if (descriptor != null && StringUtils.isNotEmpty(descriptor.getDefaultAlias())) {
+                return descriptor.getDefaultAlias();
+            }
+        } catch (WikiManagerException e) {
+            this.logger.warn("Failed to get the descriptor of wiki [{}]: {}", wiki,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+
+        return null;
+    }
+}
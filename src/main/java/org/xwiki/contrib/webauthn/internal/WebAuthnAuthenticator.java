@@ -17,11 +17,9 @@
  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
  */
-/*
-    package org.xwiki.contrib.webauthn.internal;
+package org.xwiki.contrib.webauthn.internal;
 
 import java.io.IOException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,24 +29,25 @@ import java.util.Optional;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.webauthn.internal.data.AssertionRequestWrapper;
 import org.xwiki.contrib.webauthn.internal.data.AssertionResponse;
+import org.xwiki.contrib.webauthn.internal.data.AuthenticatorDataSerializer;
 import org.xwiki.contrib.webauthn.internal.data.CredentialRegistration;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
 import org.xwiki.contrib.webauthn.internal.util.Either;
+import org.xwiki.contrib.webauthn.internal.util.RandomGenerator;
 import org.xwiki.contrib.webauthn.internal.util.SessionManager;
 
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.google.common.cache.Cache;
 import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.AssertionRequest;
 import com.yubico.webauthn.AssertionResult;
 import com.yubico.webauthn.FinishAssertionOptions;
-import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartAssertionOptions;
 import com.yubico.webauthn.data.AuthenticatorData;
 import com.yubico.webauthn.data.ByteArray;
@@ -56,14 +55,12 @@ import com.yubico.webauthn.exception.AssertionFailedException;
 
 import lombok.AllArgsConstructor;
 import lombok.Value;
-*/
 
 /**
  * Main utility for authentication of a standard XWiki user using WebAuthn credentials
  *
  * @version $Id$
  */
- /*
 @Component(roles = WebAuthnAuthenticator.class)
 @Singleton
 public class WebAuthnAuthenticator
@@ -71,33 +68,35 @@ public class WebAuthnAuthenticator
     @Inject
     private Logger logger;
 
-    private final Cache<ByteArray, AssertionRequestWrapper> assertRequestStorage;
+    @Inject
+    private RegistrationStorage userStorage;
+
+    @Inject
+    private RelyingPartyRegistry relyingParties;
 
-    private final RegistrationStorage userStorage;
+    @Inject
+    private SessionManager sessions;
 
-    private static final SecureRandom random = new SecureRandom();
+    @Inject
+    private WebAuthnConfiguration configuration;
 
-    private final RelyingParty rp;
+    @Inject
+    private CeremonySealer sealer;
 
-    private final ObjectMapper jsonMapper = JacksonCodecs.json();
+    @Inject
+    private PendingCeremonyStore pendingCeremonies;
 
-    private final SessionManager sessions;
+    @Inject
+    private RandomGenerator random;
 
-    public WebAuthnAuthenticator(Cache<ByteArray, AssertionRequestWrapper> assertRequestStorage,
-        RegistrationStorage userStorage, RelyingParty rp,
-        SessionManager sessions)
-    {
-        this.assertRequestStorage = assertRequestStorage;
-        this.userStorage = userStorage;
-        this.rp = rp;
-        this.sessions = sessions;
-    }
+    @Inject
+    private WebAuthnMetrics metrics;
+
+    private final ObjectMapper jsonMapper = JacksonCodecs.json();
 
-    private static ByteArray generateRandom(int length)
+    private ByteArray generateRandom(int length)
     {
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return new ByteArray(bytes);
+        return this.random.generateRandom(length);
     }
 
     public Either<List<String>, AssertionRequestWrapper> startAuthentication(Optional<String> username)
@@ -105,15 +104,27 @@ public class WebAuthnAuthenticator
         logger.trace("startAuthentication username: {}", username);
 
         if (username.isPresent() && !userStorage.userExists(username.get())) {
+            this.metrics.increment("authentication.start.failure.unknownUser");
             return Either.left(
                 Collections.singletonList("The username \"" + username.get() + "\" is not registered."));
         } else {
-            AssertionRequestWrapper request =
-                new AssertionRequestWrapper(
-                    generateRandom(32),
-                    rp.startAssertion(StartAssertionOptions.builder().username(username).build()));
+            AssertionRequest assertion = this.relyingParties.get()
+                .startAssertion(StartAssertionOptions.builder().username(username).build());
 
-            assertRequestStorage.put(request.getRequestId(), request);
+            AssertionRequestWrapper request;
+            if (this.configuration.isCeremonyStateless()) {
+                // The request travels sealed with the client instead of being kept in memory
+                request = new AssertionRequestWrapper(
+                    this.sealer.seal(CeremonySealer.Type.ASSERTION, jsonMapper.valueToTree(assertion)), assertion);
+            } else {
+                request = new AssertionRequestWrapper(generateRandom(32), assertion);
+                // Anybody can start an assertion for any user: only the IP quota and the unauthenticated share apply
+                if (!this.pendingCeremonies.put(request.getRequestId(), request, Optional.empty())) {
+                    this.metrics.increment("authentication.start.failure.tooManyCeremonies");
+                    return Either.left(
+                        Collections.singletonList("Too many authentications in progress, please try again later."));
+                }
+            }
 
             return Either.right(request);
         }
@@ -128,7 +139,7 @@ public class WebAuthnAuthenticator
         AssertionResponse response;
         Collection<CredentialRegistration> registrations;
 
-        @JsonSerialize(using = AuthDataSerializer.class)
+        @JsonSerialize(using = AuthenticatorDataSerializer.class)
         AuthenticatorData authData;
 
         String username;
@@ -158,32 +169,60 @@ public class WebAuthnAuthenticator
         logger.trace("finishAuthentication responseJson: {}", responseJson);
 
         final AssertionResponse response;
+        long start = this.metrics.start();
         try {
             response = jsonMapper.readValue(responseJson, AssertionResponse.class);
+            this.metrics.stop("authentication.decode", start);
         } catch (IOException e) {
+            this.metrics.increment("authentication.finish.failure.decode");
             logger.debug("Failed to decode response object", e);
             return Either.left(
                 Arrays.asList("Assertion failed!", "Failed to decode response object.", e.getMessage()));
         }
 
-        AssertionRequestWrapper request = assertRequestStorage.getIfPresent(response.getRequestId());
-        assertRequestStorage.invalidate(response.getRequestId());
+        return finishAuthentication(response);
+    }
+
+    /**
+     * @param response the assertion response sent by the client, already decoded
+     * @return the authentication result or the error messages
+     */
+    public Either<List<String>, SuccessfulAuthenticationResult> finishAuthentication(AssertionResponse response)
+    {
+        long start = this.metrics.start();
+        Either<List<String>, SuccessfulAuthenticationResult> result = doFinishAuthentication(response);
+        this.metrics.stop("authentication.finish", start);
+
+        return result;
+    }
+
+    private Either<List<String>, SuccessfulAuthenticationResult> doFinishAuthentication(AssertionResponse response)
+    {
+        AssertionRequestWrapper request = takeAssertionRequest(response.getRequestId());
 
         if (request == null) {
+            this.metrics.increment("authentication.finish.failure.noSuchCeremony");
             return Either.left(Arrays.asList("Assertion failed!", "No such assertion in progress."));
         } else {
             try {
+                // The signature is verified by the relying party, which also looks up the credential (timed
+                // separately by the credential repository)
+                long start = this.metrics.start();
                 AssertionResult result =
-                    rp.finishAssertion(
+                    this.relyingParties.get().finishAssertion(
                         FinishAssertionOptions.builder()
                             .request(request.getRequest())
                             .response(response.getCredential())
                             .build());
+                this.metrics.stop("authentication.signatureVerify", start);
 
                 if (result.isSuccess()) {
+                    start = this.metrics.start();
                     try {
                         userStorage.updateSignatureCount(result);
+                        this.metrics.stop("authentication.counterUpdate", start);
                     } catch (Exception e) {
+                        this.metrics.increment("authentication.finish.failure.counterUpdate");
                         logger.error(
                             "Failed to update signature count for user \"{}\", credential \"{}\"",
                             result.getUsername(),
@@ -191,6 +230,7 @@ public class WebAuthnAuthenticator
                             e);
                     }
 
+                    this.metrics.increment("authentication.finish.success");
                     return Either.right(
                         new SuccessfulAuthenticationResult(
                             request,
@@ -200,12 +240,15 @@ public class WebAuthnAuthenticator
                             sessions.createSession(result.getUserHandle()),
                             result.getWarnings()));
                 } else {
+                    this.metrics.increment("authentication.finish.failure.invalidAssertion");
                     return Either.left(Collections.singletonList("Assertion failed: Invalid assertion."));
                 }
             } catch (AssertionFailedException e) {
+                this.metrics.increment("authentication.finish.failure.assertionFailed");
                 logger.debug("Assertion failed", e);
                 return Either.left(Arrays.asList("Assertion failed!", e.getMessage()));
             } catch (Exception e) {
+                this.metrics.increment("authentication.finish.failure.unexpected");
                 logger.error("Assertion failed", e);
                 return Either.left(
                     Arrays.asList("Assertion failed unexpectedly; this is likely a bug.", e.getMessage()));
@@ -213,33 +256,24 @@ public class WebAuthnAuthenticator
         }
     }
 
-    private static class AuthDataSerializer extends JsonSerializer<AuthenticatorData>
+    private AssertionRequestWrapper takeAssertionRequest(ByteArray requestId)
     {
-        @Override
-        public void serialize(AuthenticatorData value, JsonGenerator gen, SerializerProvider serializers)
-            throws IOException
-        {
-            gen.writeStartObject();
-            gen.writeStringField("rpIdHash", value.getRpIdHash().getHex());
-            gen.writeObjectField("flags", value.getFlags());
-            gen.writeNumberField("signatureCounter", value.getSignatureCounter());
-            value
-                .getAttestedCredentialData()
-                .ifPresent(
-                    acd -> {
-                        try {
-                            gen.writeObjectFieldStart("attestedCredentialData");
-                            gen.writeStringField("aaguid", acd.getAaguid().getHex());
-                            gen.writeStringField("credentialId", acd.getCredentialId().getHex());
-                            gen.writeStringField("publicKey", acd.getCredentialPublicKey().getHex());
-                            gen.writeEndObject();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-            gen.writeObjectField("extensions", value.getExtensions());
-            gen.writeEndObject();
+        if (!this.configuration.isCeremonyStateless()) {
+            return this.pendingCeremonies.take(requestId, AssertionRequestWrapper.class);
+        }
+
+        Optional<JsonNode> payload = this.sealer.unseal(CeremonySealer.Type.ASSERTION, requestId);
+        if (!payload.isPresent()) {
+            return null;
+        }
+
+        try {
+            return new AssertionRequestWrapper(requestId,
+                this.jsonMapper.treeToValue(payload.get(), AssertionRequest.class));
+        } catch (IOException e) {
+            this.logger.warn("Failed to decode sealed assertion request: {}", ExceptionUtils.getRootCauseMessage(e));
+
+            return null;
         }
     }
 }
-*/
\ No newline at end of file
@@ -20,19 +20,29 @@
 package org.xwiki.contrib.webauthn.internal;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.lang3.BooleanUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.container.Container;
-import org.xwiki.container.Request;
 import org.xwiki.container.Session;
 import org.xwiki.container.servlet.ServletSession;
-import org.xwiki.properties.ConverterManager;
+
+import com.xpn.xwiki.XWikiContext;
 
 /**
  * WebAuthn based configurations
@@ -56,18 +66,165 @@ public class WebAuthnConfiguration
 
     public static final String PROP_STATE = "webauthn.state";
 
+    /**
+     * The relying party identifier, a domain name. The domain of the wiki is used by default.
+     */
+    public static final String PROP_RP_ID = "webauthn.rp.id";
+
+    /**
+     * The relying party name displayed by the authenticators.
+     */
+    public static final String PROP_RP_NAME = "webauthn.rp.name";
+
+    /**
+     * The origins allowed to perform the ceremonies.
+     */
+    public static final String PROP_RP_ORIGINS = "webauthn.rp.origins";
+
+    /**
+     * The attestation conveyance preference of the relying party: none, indirect or direct.
+     */
+    public static final String PROP_RP_ATTESTATION = "webauthn.rp.attestation";
+
+    /**
+     * Accept the registration of credentials whose attestation cannot be trusted.
+     */
+    public static final String PROP_RP_ALLOWUNTRUSTEDATTESTATION = "webauthn.rp.allowUntrustedAttestation";
+
+    /**
+     * Include the debug details in the ceremony results.
+     */
+    public static final String PROP_RESPONSE_VERBOSE = "webauthn.response.verbose";
+
+    /**
+     * Enable the stateless ceremonies: the pending requests are sealed and sent to the client instead of being kept
+     * in memory.
+     */
+    public static final String PROP_CEREMONY_STATELESS = "webauthn.ceremony.stateless";
+
+    /**
+     * The secret used to seal the stateless ceremonies. Must be the same on all the members of a cluster.
+     */
+    public static final String PROP_CEREMONY_SECRET = "webauthn.ceremony.secret";
+
+    /**
+     * The maximum number of ceremonies in progress.
+     */
+    public static final String PROP_CEREMONY_CAPACITY = "webauthn.ceremony.capacity";
+
+    /**
+     * The time, in seconds, a client has to finish a ceremony.
+     */
+    public static final String PROP_CEREMONY_TIMEOUT = "webauthn.ceremony.timeout";
+
+    /**
+     * The maximum number of ceremonies in progress for a given client IP address, 0 for no limit. Behind a reverse
+     * proxy, the proxy has to be listed in {@link #PROP_CEREMONY_TRUSTEDPROXIES} for the client address to be taken
+     * from the X-Forwarded-For header.
+     */
+    public static final String PROP_CEREMONY_MAXPERIP = "webauthn.ceremony.maxPerIP";
+
+    /**
+     * The IP addresses of the reverse proxies allowed to give the client address in the X-Forwarded-For header.
+     */
+    public static final String PROP_CEREMONY_TRUSTEDPROXIES = "webauthn.ceremony.trustedProxies";
+
+    /**
+     * The maximum number of registrations in progress for a given user.
+     */
+    public static final String PROP_CEREMONY_MAXPERUSER = "webauthn.ceremony.maxPerUser";
+
+    /**
+     * The directory containing the trusted attestation root certificates (PEM or DER files).
+     */
+    public static final String PROP_ATTESTATION_TRUSTANCHORS = "webauthn.attestation.trustAnchors";
+
+    /**
+     * The FIDO Metadata Service (MDS3) blob, a JWT file downloaded by the administrator.
+     */
+    public static final String PROP_ATTESTATION_MDS_BLOB = "webauthn.attestation.mds.blob";
+
+    /**
+     * The root certificate (PEM or DER file) the FIDO Metadata Service blob is signed with.
+     */
+    public static final String PROP_ATTESTATION_MDS_ROOT = "webauthn.attestation.mds.root";
+
+    /**
+     * The binary index of the FIDO Metadata Service blob, in the permanent directory by default.
+     */
+    public static final String PROP_ATTESTATION_MDS_INDEX = "webauthn.attestation.mds.index";
+
+    /**
+     * The interval, in seconds, at which the trust anchor sources are checked for modifications. 0 to disable.
+     */
+    public static final String PROP_ATTESTATION_RELOADINTERVAL = "webauthn.attestation.reloadInterval";
+
+    /**
+     * The maximum number of attestation certificate chains whose verification result is kept.
+     */
+    public static final String PROP_ATTESTATION_CACHE_CAPACITY = "webauthn.attestation.cache.capacity";
+
+    /**
+     * The maximum time, in seconds, the verification result of an attestation certificate chain is reused.
+     */
+    public static final String PROP_ATTESTATION_CACHE_TIMEOUT = "webauthn.attestation.cache.timeout";
+
+    /**
+     * The delay, in seconds, between two saves of the signature counts updated by the logins.
+     */
+    public static final String PROP_SIGNATURECOUNT_FLUSHDELAY = "webauthn.signatureCount.flushDelay";
+
+    /**
+     * Expose the WebAuthn metrics in the Prometheus text format on {@code webauthn/metrics}.
+     */
+    public static final String PROP_METRICS_PROMETHEUS = "webauthn.metrics.prometheus";
+
+    /**
+     * The bearer token allowing to read the Prometheus metrics without being a wiki administrator.
+     */
+    public static final String PROP_METRICS_TOKEN = "webauthn.metrics.token";
+
+    /**
+     * The algorithm of the {@link java.security.SecureRandom} used to generate identifiers and tokens.
+     */
+    public static final String PROP_RANDOM_ALGORITHM = "webauthn.random.algorithm";
+
+    /**
+     * The maximum number of WebAuthn sessions.
+     */
+    public static final String PROP_SESSION_CAPACITY = "webauthn.session.capacity";
+
+    /**
+     * The time, in seconds, after which an unused WebAuthn session expires.
+     */
+    public static final String PROP_SESSION_TIMEOUT = "webauthn.session.timeout";
+
     @Inject
+    @Named("xwikiproperties")
     protected ConfigurationSource configuration;
 
+    /**
+     * The preferences of the current wiki, which take precedence over {@link #configuration}.
+     */
+    @Inject
+    @Named("wiki")
+    private ConfigurationSource wikiConfiguration;
+
     @Inject
     private Container container;
 
     @Inject
-    private ConverterManager converter;
+    private Provider<XWikiContext> xcontextProvider;
 
     @Inject
     private Logger logger;
 
+    /**
+     * The configuration snapshot of each wiki, dropped when the preferences of the wiki change (xwiki.properties is
+     * only read on startup).
+     */
+    private final ConcurrentMap<String, WebAuthnConfigurationSnapshot> snapshots = new ConcurrentHashMap<>();
+
     private HttpSession getHttpSession()
     {
         Session session = this.container.getSession();
@@ -114,90 +271,291 @@ public class WebAuthnConfiguration
         }
     }
 
-    private String getRequestParameter(String key)
+    public String getSessionState()
     {
-        Request request = this.container.getRequest();
-        if (request != null) {
-            return (String) request.getProperty(key);
-        }
-
-        return null;
+        return getSessionAttribute(PROP_STATE);
     }
 
+    public String getWebAuthnUser()
+    {
+        return getSessionAttribute(PROP_XWIKIUSER);
+    }
 
     /**
-     * @param key the name of the property
-     * @param valueClass the class of the property
-     * @return the property value
+     * Check if WebAuthn authentication is skipped for the current request. This is called on every request so it only
+     * looks at the request parameter, the session state and the configuration source, without any conversion, and
+     * only writes the session when the choice changes.
+     *
+     * @param request the current request
+     * @return true if WebAuthn authentication is skipped
      */
-    protected <T> T getProperty(String key, Class<T> valueClass)
+    public boolean isSkipped(HttpServletRequest request)
     {
-        // Get property from request
-        String requestValue = getRequestParameter(key);
+        String requestValue = request.getParameter(PROP_SKIPPED);
+
+        HttpSession session = request.getSession(false);
+        WebAuthnSessionState state = session != null
+            ? (WebAuthnSessionState) session.getAttribute(WebAuthnSessionState.SESSION_ATTRIBUTE) : null;
+
         if (requestValue != null) {
-            return this.converter.convert(valueClass, requestValue);
+            boolean skipped = BooleanUtils.toBoolean(requestValue);
+
+            // Remember the choice of the user
+            if (state == null || state.isSkipped() != skipped) {
+                request.getSession().setAttribute(WebAuthnSessionState.SESSION_ATTRIBUTE,
+                    new WebAuthnSessionState(skipped));
+            }
+
+            return skipped;
         }
 
-        // Get property from session
-        T sessionValue = getSessionAttribute(key);
-        if (sessionValue != null) {
-            return sessionValue;
+        if (state != null) {
+            return state.isSkipped();
         }
 
-        // Get property from configuration
-        return this.configuration.getProperty(key, valueClass);
+        return getSnapshot().isSkipped();
+    }
+
+    public URI getSuccessRedirectURI()
+    {
+        URI uri = getSessionAttribute(PROP_INITIAL_REQUEST);
+        if (uri == null) {
+            // TODO: return wiki home page
+        }
+
+        return uri;
+    }
+
+    public void setSuccessRedirectURI(URI uri)
+    {
+        setSessionAttribute(PROP_INITIAL_REQUEST, uri);
     }
 
     /**
-     * @param key the name of the property
-     * @param def the default value
-     * @return the property value
+     * @return true if the pending ceremonies should be sealed and sent to the client instead of kept in memory
      */
-    protected <T> T getProperty(String key, T def)
+    public boolean isCeremonyStateless()
     {
-        // Get property from request
-        String requestValue = getRequestParameter(key);
-        if (requestValue != null) {
-            return this.converter.convert(def.getClass(), requestValue);
-        }
+        return getSnapshot().isCeremonyStateless();
+    }
 
-        // Get property from session
-        T sessionValue = getSessionAttribute(key);
-        if (sessionValue != null) {
-            return sessionValue;
-        }
+    /**
+     * @return the secret used to seal the stateless ceremonies, null if none is configured
+     */
+    public String getCeremonySecret()
+    {
+        // Only from the configuration: the request and the session are controlled by the client
+        return this.configuration.getProperty(PROP_CEREMONY_SECRET, String.class);
+    }
 
-        // Get property from configuration
-        return this.configuration.getProperty(key, def);
+    // The ceremony and session stores are shared by all the wikis and sized when they are created, so their
+    // configuration is only read from xwiki.properties, at startup.
+
+    /**
+     * @return the maximum number of ceremonies in progress
+     */
+    public int getCeremonyCapacity()
+    {
+        return this.configuration.getProperty(PROP_CEREMONY_CAPACITY, 10000);
     }
 
-    public String getSessionState()
+    /**
+     * @return the time, in seconds, a client has to finish a ceremony
+     */
+    public int getCeremonyTimeout()
     {
-        return getSessionAttribute(PROP_STATE);
+        return this.configuration.getProperty(PROP_CEREMONY_TIMEOUT, 300);
     }
 
-    public String getWebAuthnUser()
+    /**
+     * @return the maximum number of ceremonies in progress for a given client IP address, 0 for no limit
+     */
+    public int getCeremonyMaxPerIP()
     {
-        return getSessionAttribute(PROP_XWIKIUSER);
+        return this.configuration.getProperty(PROP_CEREMONY_MAXPERIP, 20);
     }
 
-    public boolean isSkipped()
+    /**
+     * @return the IP addresses of the reverse proxies allowed to give the client address, the loopback addresses by
+     *         default
+     */
+    public List<String> getCeremonyTrustedProxies()
     {
-        return getProperty(PROP_SKIPPED, false);
+        List<String> proxies = this.configuration.getProperty(PROP_CEREMONY_TRUSTEDPROXIES, List.class);
+
+        return proxies != null ? proxies : Arrays.asList("127.0.0.1", "0:0:0:0:0:0:0:1", "::1");
     }
 
-    public URI getSuccessRedirectURI()
+    /**
+     * @return the maximum number of registrations in progress for a given user
+     */
+    public int getCeremonyMaxPerUser()
     {
-        URI uri = getSessionAttribute(PROP_INITIAL_REQUEST);
-        if (uri == null) {
-            // TODO: return wiki home page
+        return this.configuration.getProperty(PROP_CEREMONY_MAXPERUSER, 5);
+    }
+
+    /**
+     * @return the maximum number of WebAuthn sessions
+     */
+    public int getSessionCapacity()
+    {
+        return this.configuration.getProperty(PROP_SESSION_CAPACITY, 10000);
+    }
+
+    /**
+     * @return the time, in seconds, after which an unused WebAuthn session expires
+     */
+    public int getSessionTimeout()
+    {
+        return this.configuration.getProperty(PROP_SESSION_TIMEOUT, 300);
+    }
+
+    /**
+     * @return the algorithm of the {@link java.security.SecureRandom} used to generate identifiers and tokens, null
+     *         for the JVM default
+     */
+    public String getRandomAlgorithm()
+    {
+        return this.configuration.getProperty(PROP_RANDOM_ALGORITHM, String.class);
+    }
+
+    /**
+     * @return the directory containing the trusted attestation root certificates, null if none is configured
+     */
+    public String getAttestationTrustAnchors()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_TRUSTANCHORS, String.class);
+    }
+
+    /**
+     * @return the FIDO Metadata Service blob file, null if none is configured
+     */
+    public String getAttestationMDSBlob()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_MDS_BLOB, String.class);
+    }
+
+    /**
+     * @return the root certificate file the FIDO Metadata Service blob is signed with, null if none is configured
+     */
+    public String getAttestationMDSRoot()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_MDS_ROOT, String.class);
+    }
+
+    /**
+     * @return the binary index file of the FIDO Metadata Service blob, null for the default location
+     */
+    public String getAttestationMDSIndex()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_MDS_INDEX, String.class);
+    }
+
+    /**
+     * @return the interval, in seconds, at which the trust anchor sources are checked for modifications
+     */
+    public int getAttestationReloadInterval()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_RELOADINTERVAL, 60);
+    }
+
+    /**
+     * @return the maximum number of attestation certificate chains whose verification result is kept
+     */
+    public int getAttestationCacheCapacity()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_CACHE_CAPACITY, 1000);
+    }
+
+    /**
+     * @return the maximum time, in seconds, the verification result of an attestation certificate chain is reused
+     */
+    public int getAttestationCacheTimeout()
+    {
+        return this.configuration.getProperty(PROP_ATTESTATION_CACHE_TIMEOUT, 3600);
+    }
+
+    /**
+     * @return the delay, in seconds, between two saves of the signature counts updated by the logins
+     */
+    public int getSignatureCountFlushDelay()
+    {
+        return this.configuration.getProperty(PROP_SIGNATURECOUNT_FLUSHDELAY, 30);
+    }
+
+    /**
+     * @return true if the WebAuthn metrics are exposed in the Prometheus text format
+     */
+    public boolean isMetricsPrometheus()
+    {
+        return this.configuration.getProperty(PROP_METRICS_PROMETHEUS, false);
+    }
+
+    /**
+     * @return the bearer token allowing to read the Prometheus metrics, null if none is configured
+     */
+    public String getMetricsToken()
+    {
+        return this.configuration.getProperty(PROP_METRICS_TOKEN, String.class);
+    }
+
+    /**
+     * @return the WebAuthn configuration of the current wiki
+     */
+    public WebAuthnConfigurationSnapshot getSnapshot()
+    {
+        return this.snapshots.computeIfAbsent(getCurrentWiki(), wiki -> createSnapshot());
+    }
+
+    /**
+     * Forget the configuration snapshot of a wiki, it will be rebuilt on the next access.
+     *
+     * @param wiki the identifier of the wiki
+     */
+    public void invalidate(String wiki)
+    {
+        this.snapshots.remove(wiki);
+    }
+
+    private String getCurrentWiki()
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        return xcontext != null && xcontext.getWikiId() != null ? xcontext.getWikiId() : "";
+    }
+
+    private WebAuthnConfigurationSnapshot createSnapshot()
+    {
+        List<String> origins = getWikiProperty(PROP_RP_ORIGINS, List.class);
+
+        return WebAuthnConfigurationSnapshot.builder()
+            .rpId(getWikiProperty(PROP_RP_ID, String.class))
+            .rpName(getWikiProperty(PROP_RP_NAME, "XWiki WebAuthn"))
+            .origins(origins != null ? Collections.unmodifiableSet(new LinkedHashSet<>(origins))
+                : Collections.<String>emptySet())
+            .attestation(getWikiProperty(PROP_RP_ATTESTATION, String.class))
+            .allowUntrustedAttestation(getWikiProperty(PROP_RP_ALLOWUNTRUSTEDATTESTATION, true))
+            .skipped(getWikiProperty(PROP_SKIPPED, false))
+            .verboseResponses(getWikiProperty(PROP_RESPONSE_VERBOSE, false))
+            .ceremonyStateless(getWikiProperty(PROP_CEREMONY_STATELESS, false))
+            .build();
+    }
+
+    private <T> T getWikiProperty(String key, Class<T> valueClass)
+    {
+        if (this.wikiConfiguration.containsKey(key)) {
+            return this.wikiConfiguration.getProperty(key, valueClass);
         }
 
-        return uri;
+        return this.configuration.getProperty(key, valueClass);
     }
 
-    public void setSuccessRedirectURI(URI uri)
+    private <T> T getWikiProperty(String key, T def)
     {
-        setSessionAttribute(PROP_INITIAL_REQUEST, uri);
+        if (this.wikiConfiguration.containsKey(key)) {
+            return this.wikiConfiguration.getProperty(key, def);
+        }
+
+        return this.configuration.getProperty(key, def);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.util.Set;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * Immutable view of the WebAuthn configuration of a wiki, rebuilt only when the configuration changes.
+ *
+ * @version $Id$
+ */
+@Value
+@Builder
+public class WebAuthnConfigurationSnapshot
+{
+    /**
+     * The relying party identifier (a domain name), or null to use the domain of the wiki.
+     */
+    String rpId;
+
+    @NonNull
+    String rpName;
+
+    /**
+     * The origins allowed to perform the ceremonies, empty to only allow the relying party identifier.
+     */
+    @NonNull
+    Set<String> origins;
+
+    /**
+     * The attestation conveyance preference (none, indirect or direct), or null for the default.
+     */
+    String attestation;
+
+    boolean allowUntrustedAttestation;
+
+    /**
+     * True if WebAuthn authentication is skipped unless the user asks for it.
+     */
+    boolean skipped;
+
+    /**
+     * True if the ceremony results should include the debug details (request, response, registrations,
+     * authenticator data and attestation certificate).
+     */
+    boolean verboseResponses;
+
+    boolean ceremonyStateless;
+}
@@ -17,18 +17,17 @@
  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
  */
-/*
 package org.xwiki.contrib.webauthn.internal;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.security.Principal;
-import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.time.Clock;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
@@ -36,33 +35,34 @@ import java.util.concurrent.ExecutionException;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.securityfilter.realm.SimplePrincipal;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.attestation.MetadataEntry;
+import org.xwiki.contrib.webauthn.internal.attestation.MetadataIndex;
+import org.xwiki.contrib.webauthn.internal.data.AuthenticatorDataSerializer;
 import org.xwiki.contrib.webauthn.internal.data.CredentialRegistration;
 import org.xwiki.contrib.webauthn.internal.data.RegistrationRequest;
 import org.xwiki.contrib.webauthn.internal.data.RegistrationResponse;
 import org.xwiki.contrib.webauthn.internal.event.WebAuthnUserEventData;
 import org.xwiki.contrib.webauthn.internal.event.WebAuthnUserUpdating;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
 import org.xwiki.contrib.webauthn.internal.store.WebAuthnUserStore;
-import org.xwiki.contrib.webauthn.internal.util.ContentResponse;
 import org.xwiki.contrib.webauthn.internal.util.Either;
+import org.xwiki.contrib.webauthn.internal.util.RandomGenerator;
 import org.xwiki.contrib.webauthn.internal.util.SessionManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.query.QueryException;
-import org.xwiki.template.TemplateManager;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.nimbusds.oauth2.sdk.http.HTTPResponse;
-import com.nimbusds.oauth2.sdk.http.ServletUtils;
-import com.google.common.cache.Cache;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
@@ -74,32 +74,39 @@ import com.yubico.internal.util.JacksonCodecs;
 import com.yubico.webauthn.FinishRegistrationOptions;
 import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.RegistrationResult;
-import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartRegistrationOptions;
 import com.yubico.webauthn.attestation.Attestation;
 import com.yubico.webauthn.data.AuthenticatorData;
 import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
 import com.yubico.webauthn.data.ByteArray;
-import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
 import com.yubico.webauthn.data.UserIdentity;
 import com.yubico.webauthn.exception.RegistrationFailedException;
 
 import lombok.NonNull;
 import lombok.Value;
-import lombok.val;
-*/
 
 /**
  * Main utility for registration of WebAuthn credentials for a standard XWiki user
  *
  * @version $Id$
  */
-
-/*
 @Component(roles = WebAuthnRegistrationManager.class)
 @Singleton
 public class WebAuthnRegistrationManager
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebAuthnRegistrationManager.class);
+
+    private static final String FIELD_USERNAME = "username";
+
+    private static final String FIELD_CREDENTIALNICKNAME = "credentialNickname";
+
+    private static final String FIELD_SESSIONTOKEN = "sessionToken";
+
+    private static final String FIELD_OPTIONS = "publicKeyCredentialCreationOptions";
+
+    private static final String FIELD_OWNER = "owner";
+
     @Inject
     private Provider<XWikiContext> xcontextProvider;
 
@@ -107,65 +114,52 @@ public class WebAuthnRegistrationManager
     private WebAuthnUserStore store;
 
     @Inject
-    private ObservationManager observation;
+    private EntityReferenceSerializer<String> serializer;
 
     @Inject
-    private WebAuthnConfiguration configuration;
+    private ObservationManager observation;
 
     @Inject
-    private static Logger logger;
+    private WebAuthnConfiguration configuration;
 
     @Inject
     private RegistrationStorage userStorage;
 
     @Inject
-    private TemplateManager templates;
-
-    private final ObjectMapper jsonMapper = JacksonCodecs.json();
-
-    private final SessionManager sessions;
+    private SessionManager sessions;
 
+    @Inject
+    private CeremonySealer sealer;
 
-    private final Clock clock = Clock.systemDefaultZone();
+    @Inject
+    private PendingCeremonyStore pendingCeremonies;
 
-    private static final SecureRandom random = new SecureRandom();
+    @Inject
+    private RelyingPartyRegistry relyingParties;
 
-    private final Cache<ByteArray, RegistrationRequest> registerRequestStorage;
+    @Inject
+    private MetadataIndex metadataIndex;
 
-    public WebAuthnRegistrationManager(SessionManager sessions,
-        Cache<ByteArray, RegistrationRequest> registerRequestStorage)
-    {
-        this.sessions = sessions;
-        this.registerRequestStorage = registerRequestStorage;
-    }
+    @Inject
+    private WebAuthnMetrics metrics;
 
-    /**
-     * The RP identity, here it means the XWiki instance
-     */
-/*
-    RelyingPartyIdentity rpIdentity = RelyingPartyIdentity.builder()
-        .id("example.com")
-        .name("XWiki WebAuthn")
-        .build();
+    private final ObjectMapper jsonMapper = JacksonCodecs.json();
 
-    RelyingParty rp = RelyingParty.builder()
-        .identity(rpIdentity)
-        .credentialRepository(new RegistrationStorage())
-        .build();
+    private final Clock clock = Clock.systemDefaultZone();
 
+    @Inject
+    private RandomGenerator random;
 
-    private static ByteArray generateRandom(int length)
+    private ByteArray generateRandom(int length)
     {
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return new ByteArray(bytes);
+        return this.random.generateRandom(length);
     }
 
     public Either<String, RegistrationRequest> startRegistration(@NonNull String username, Optional<String> displayName,
         Optional<String> credentialNickname, boolean requireResidentKey, Optional<ByteArray> sessionToken)
         throws ExecutionException
     {
-        logger.trace(
+        LOGGER.trace(
             "startRegistration username: {}, credentialNickname: {}", username, credentialNickname);
 
         final Collection<CredentialRegistration> registrations = this.userStorage.getRegistrationsByUsername(username);
@@ -188,23 +182,40 @@ public class WebAuthnRegistrationManager
                             .id(generateRandom(32))
                             .build());
 
-            RegistrationRequest request =
-                new RegistrationRequest(
-                    username,
-                    credentialNickname,
-                    generateRandom(32),
-                    rp.startRegistration(
-                        StartRegistrationOptions.builder()
-                            .user(registrationUserId)
-                            .authenticatorSelection(
-                                AuthenticatorSelectionCriteria.builder()
-                                    .requireResidentKey(requireResidentKey)
-                                    .build())
-                            .build()),
-                    Optional.of(sessions.createSession(registrationUserId.getId())));
-            registerRequestStorage.put(request.getRequestId(), request);
+            PublicKeyCredentialCreationOptions options =
+                this.relyingParties.get().startRegistration(
+                    StartRegistrationOptions.builder()
+                        .user(registrationUserId)
+                        .authenticatorSelection(
+                            AuthenticatorSelectionCriteria.builder()
+                                .requireResidentKey(requireResidentKey)
+                                .build())
+                        .build());
+            Optional<ByteArray> registrationSessionToken =
+                Optional.of(sessions.createSession(registrationUserId.getId()));
+
+            // Only the user starting the registration is allowed to finish it
+            Optional<DocumentReference> owner = Optional.ofNullable(this.xcontextProvider.get().getUserReference());
+
+            RegistrationRequest request;
+            if (this.configuration.isCeremonyStateless()) {
+                // The request travels sealed with the client instead of being kept in memory
+                request = new RegistrationRequest(username, credentialNickname,
+                    sealRegistrationRequest(username, credentialNickname, options, registrationSessionToken, owner),
+                    options,
+                    registrationSessionToken);
+            } else {
+                request = new RegistrationRequest(username, credentialNickname, generateRandom(32), options,
+                    registrationSessionToken);
+                if (!this.pendingCeremonies.put(request.getRequestId(), request, owner)) {
+                    this.metrics.increment("registration.start.failure.tooManyCeremonies");
+                    return Either.left("Too many registrations in progress, please try again later.");
+                }
+            }
+
             return Either.right(request);
         } else {
+            this.metrics.increment("registration.start.failure.alreadyRegistered");
             return Either.left("The username \"" + username + "\" is already registered.");
         }
     }
@@ -229,9 +240,8 @@ public class WebAuthnRegistrationManager
         RegistrationResponse response;
         CredentialRegistration registration;
         boolean attestationTrusted;
-        Optional<AttestationCertInfo> attestationCert;
 
-        @JsonSerialize(using = AuthDataSerializer.class)
+        @JsonSerialize(using = AuthenticatorDataSerializer.class)
         AuthenticatorData authData;
 
         String username;
@@ -244,7 +254,19 @@ public class WebAuthnRegistrationManager
             this.response = response;
             this.registration = registration;
             this.attestationTrusted = attestationTrusted;
-            attestationCert =
+            this.authData = response.getCredential().getResponse().getParsedAuthenticatorData();
+            this.username = request.getUsername();
+            this.sessionToken = sessionToken;
+        }
+
+        /**
+         * Parsed only when asked for (i.e. when serializing a verbose result).
+         *
+         * @return the attestation certificate, if any
+         */
+        public Optional<AttestationCertInfo> getAttestationCert()
+        {
+            return
                 Optional.ofNullable(
                         response
                             .getCredential()
@@ -258,47 +280,66 @@ public class WebAuthnRegistrationManager
                             try {
                                 return Optional.of(new ByteArray(certDer.binaryValue()));
                             } catch (IOException e) {
-                                logger.error("Failed to get binary value from x5c element: {}", certDer, e);
+                                LOGGER.error("Failed to get binary value from x5c element: {}", certDer, e);
                                 return Optional.empty();
                             }
                         })
                     .map(AttestationCertInfo::new);
-
-            this.authData = response.getCredential().getResponse().getParsedAuthenticatorData();
-            this.username = request.getUsername();
-            this.sessionToken = sessionToken;
         }
     }
 
 
     public Either<List<String>, SuccessfulRegistrationResult> finishRegistration(String responseJson)
     {
-        logger.trace("finishRegistration responseJson: {}", responseJson);
+        LOGGER.trace("finishRegistration responseJson: {}", responseJson);
         RegistrationResponse response = null;
 
+        long start = this.metrics.start();
         try {
             response = jsonMapper.readValue(responseJson, RegistrationResponse.class);
+            this.metrics.stop("registration.decode", start);
         } catch (IOException e) {
-            logger.error("JSON error in finishRegistration; responseJson: {}", responseJson, e);
+            this.metrics.increment("registration.finish.failure.decode");
+            LOGGER.error("JSON error in finishRegistration; responseJson: {}", responseJson, e);
             return Either.left(
                 Arrays.asList("Registration failed!", "Failed to decode response object.", e.getMessage()));
         }
 
-        RegistrationRequest request = registerRequestStorage.getIfPresent(response.getRequestId());
-        registerRequestStorage.invalidate(response.getRequestId());
+        return finishRegistration(response);
+    }
+
+    /**
+     * @param response the registration response sent by the client, already decoded
+     * @return the registration result or the error messages
+     */
+    public Either<List<String>, SuccessfulRegistrationResult> finishRegistration(RegistrationResponse response)
+    {
+        long start = this.metrics.start();
+        Either<List<String>, SuccessfulRegistrationResult> result = doFinishRegistration(response);
+        this.metrics.stop("registration.finish", start);
+
+        return result;
+    }
+
+    private Either<List<String>, SuccessfulRegistrationResult> doFinishRegistration(RegistrationResponse response)
+    {
+        RegistrationRequest request = takeRegistrationRequest(response.getRequestId());
 
         if (request == null) {
-            logger.debug("fail finishRegistration responseJson: {}", responseJson);
+            this.metrics.increment("registration.finish.failure.noSuchCeremony");
+            LOGGER.debug("fail finishRegistration requestId: {}", response.getRequestId());
             return Either.left(
                 Arrays.asList("Registration failed!", "No such registration in progress."));
         } else {
             try {
+                long start = this.metrics.start();
                 com.yubico.webauthn.RegistrationResult registration =
-                    rp.finishRegistration(
+                    this.relyingParties.get().finishRegistration(
                         FinishRegistrationOptions.builder()
                             .request(request.getPublicKeyCredentialCreationOptions())
                             .response(response.getCredential())
                             .build());
+                this.metrics.stop("registration.finishRegistration", start);
 
                 if (this.userStorage.userExists(request.getUsername())) {
                     boolean permissionGranted = false;
@@ -313,17 +354,17 @@ public class WebAuthnRegistrationManager
                                         token))
                             .orElse(false);
 
-                    logger.debug("Session token: {}", request.getSessionToken());
-                    logger.debug("Valid session: {}", isValidSession);
+                    LOGGER.debug("Session token: {}", request.getSessionToken());
+                    LOGGER.debug("Valid session: {}", isValidSession);
 
                     if (isValidSession) {
                         permissionGranted = true;
-                        logger.info(
+                        LOGGER.info(
                             "Session token accepted for user {}",
                             request.getPublicKeyCredentialCreationOptions().getUser().getId());
                     }
 
-                    logger.debug("permissionGranted: {}", permissionGranted);
+                    LOGGER.debug("permissionGranted: {}", permissionGranted);
 
                     if (!permissionGranted) {
                         throw new RegistrationFailedException(
@@ -332,23 +373,30 @@ public class WebAuthnRegistrationManager
                     }
                 }
 
+                CredentialRegistration credentialRegistration =
+                    addRegistration(
+                        getProfileReference(request),
+                        request.getPublicKeyCredentialCreationOptions().getUser(),
+                        request.getCredentialNickname(),
+                        response,
+                        registration);
+
+                this.metrics.increment("registration.finish.success");
                 return Either.right(
                     new SuccessfulRegistrationResult(
                         request,
                         response,
-                        addRegistration(
-                            request.getPublicKeyCredentialCreationOptions().getUser(),
-                            request.getCredentialNickname(),
-                            response,
-                            registration),
-                        registration.isAttestationTrusted(),
+                        credentialRegistration,
+                        credentialRegistration.getAttestationMetadata().map(Attestation::isTrusted).orElse(false),
                         sessions.createSession(
                             request.getPublicKeyCredentialCreationOptions().getUser().getId())));
             } catch (RegistrationFailedException e) {
-                logger.debug("fail finishRegistration responseJson: {}", responseJson, e);
+                this.metrics.increment("registration.finish.failure.registrationFailed");
+                LOGGER.debug("fail finishRegistration requestId: {}", response.getRequestId(), e);
                 return Either.left(Arrays.asList("Registration failed!", e.getMessage()));
             } catch (Exception e) {
-                logger.error("fail finishRegistration responseJson: {}", responseJson, e);
+                this.metrics.increment("registration.finish.failure.unexpected");
+                LOGGER.error("fail finishRegistration requestId: {}", response.getRequestId(), e);
                 return Either.left(
                     Arrays.asList("Registration failed unexpectedly; this is likely a bug.", e.getMessage()));
             }
@@ -356,10 +404,77 @@ public class WebAuthnRegistrationManager
     }
 
 
-    private CredentialRegistration addRegistration(UserIdentity userIdentity, Optional<String> nickname,
-        RegistrationResponse response, RegistrationResult result)
+    private ByteArray sealRegistrationRequest(String username, Optional<String> credentialNickname,
+        PublicKeyCredentialCreationOptions options, Optional<ByteArray> sessionToken,
+        Optional<DocumentReference> owner)
+    {
+        ObjectNode payload = this.jsonMapper.createObjectNode();
+        owner.ifPresent(reference -> payload.put(FIELD_OWNER, this.serializer.serialize(reference)));
+        payload.put(FIELD_USERNAME, username);
+        credentialNickname.ifPresent(nickname -> payload.put(FIELD_CREDENTIALNICKNAME, nickname));
+        sessionToken.ifPresent(token -> payload.put(FIELD_SESSIONTOKEN, token.getBase64Url()));
+        payload.set(FIELD_OPTIONS, this.jsonMapper.valueToTree(options));
+
+        return this.sealer.seal(CeremonySealer.Type.REGISTRATION, payload);
+    }
+
+    private RegistrationRequest takeRegistrationRequest(ByteArray requestId)
+    {
+        if (!this.configuration.isCeremonyStateless()) {
+            return this.pendingCeremonies.take(requestId, RegistrationRequest.class);
+        }
+
+        Optional<JsonNode> payload = this.sealer.unseal(CeremonySealer.Type.REGISTRATION, requestId);
+        if (!payload.isPresent()) {
+            return null;
+        }
+
+        try {
+            JsonNode node = payload.get();
+
+            if (node.has(FIELD_OWNER)) {
+                String owner = node.get(FIELD_OWNER).asText();
+                DocumentReference currentUser = this.xcontextProvider.get().getUserReference();
+                if (currentUser == null || !owner.equals(this.serializer.serialize(currentUser))) {
+                    LOGGER.debug("Sealed registration started by user [{}] finished by user [{}]", owner,
+                        currentUser);
+
+                    return null;
+                }
+            }
+
+            Optional<String> credentialNickname =
+                Optional.ofNullable(node.get(FIELD_CREDENTIALNICKNAME)).map(JsonNode::asText);
+            Optional<ByteArray> sessionToken = node.has(FIELD_SESSIONTOKEN)
+                ? Optional.of(ByteArray.fromBase64Url(node.get(FIELD_SESSIONTOKEN).asText())) : Optional.empty();
+
+            return new RegistrationRequest(node.get(FIELD_USERNAME).asText(), credentialNickname, requestId,
+                this.jsonMapper.treeToValue(node.get(FIELD_OPTIONS), PublicKeyCredentialCreationOptions.class),
+                sessionToken);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to decode sealed registration request: {}", ExceptionUtils.getRootCauseMessage(e));
+
+            return null;
+        }
+    }
+
+    /**
+     * @return the reference of the profile of the user registering the credential, in the wiki of the user
+     */
+    private DocumentReference getProfileReference(RegistrationRequest request)
+    {
+        // The ceremony can only be finished by the user who started it
+        DocumentReference userReference = this.xcontextProvider.get().getUserReference();
+
+        return userReference != null ? userReference : this.store.getUserReference(request.getUsername());
+    }
+
+    private CredentialRegistration addRegistration(DocumentReference userReference, UserIdentity userIdentity,
+        Optional<String> nickname, RegistrationResponse response, RegistrationResult result)
+        throws RegistrationFailedException
     {
         return addRegistration(
+            userReference,
             userIdentity,
             nickname,
             response
@@ -379,11 +494,41 @@ public class WebAuthnRegistrationManager
                         .getParsedAuthenticatorData()
                         .getSignatureCounter())
                 .build(),
-            result.getAttestationMetadata());
+            getAttestationMetadata(response, result));
     }
 
-    private CredentialRegistration addRegistration(UserIdentity userIdentity, Optional<String> nickname,
-        long signatureCount, RegisteredCredential credential, Optional<Attestation> attestationMetadata)
+    /**
+     * Complete the attestation with the metadata of the authenticator model. The status of the model is already
+     * enforced by the trust anchors, when the attestation is verified.
+     */
+    private Optional<Attestation> getAttestationMetadata(RegistrationResponse response, RegistrationResult result)
+    {
+        Optional<MetadataEntry> metadata =
+            response
+                .getCredential()
+                .getResponse()
+                .getParsedAuthenticatorData()
+                .getAttestedCredentialData()
+                .flatMap(credentialData -> this.metadataIndex.get(credentialData.getAaguid()));
+
+        if (!metadata.isPresent()) {
+            return result.getAttestationMetadata();
+        }
+
+        MetadataEntry entry = metadata.get();
+
+        return Optional.of(
+            Attestation.builder()
+                .trusted(result.getAttestationMetadata().map(Attestation::isTrusted).orElse(false))
+                .metadataIdentifier(Optional.of(entry.getAaguid().getHex()))
+                .deviceProperties(Optional.of(
+                    Collections.singletonMap("displayName", entry.getStatement().path("description").asText())))
+                .build());
+    }
+
+    private CredentialRegistration addRegistration(DocumentReference userReference, UserIdentity userIdentity,
+        Optional<String> nickname, long signatureCount, RegisteredCredential credential,
+        Optional<Attestation> attestationMetadata) throws RegistrationFailedException
     {
         CredentialRegistration reg =
             CredentialRegistration.builder()
@@ -395,20 +540,21 @@ public class WebAuthnRegistrationManager
                 .attestationMetadata(attestationMetadata)
                 .build();
 
-        logger.debug("Adding registration: user: {}, nickname: {}, credential: {}",
+        LOGGER.debug("Adding registration: user: {}, nickname: {}, credential: {}",
             userIdentity,
             nickname,
             credential);
-        this.userStorage.addRegistrationByUsername(userIdentity.getName(), reg);
+        if (!this.userStorage.addRegistration(userReference, reg)) {
+            throw new RegistrationFailedException(
+                new IllegalArgumentException(String.format("No user profile found at %s", userReference)));
+        }
         return reg;
     }
 
     public Principal updateUser(RegisteredCredential credential, UserIdentity userIdentity,
-        ByteArray publicKeyCose, int signatureCount) throws QueryException, XWikiException
+        ByteArray publicKeyCose, long signatureCount) throws QueryException, XWikiException
     {
-        XWikiDocument userDocument =
-            this.store.searchDocument(credential.getCredentialId().toString(),
-            userIdentity.toString(),publicKeyCose.toString(), signatureCount);
+        XWikiDocument userDocument = this.store.searchDocument(credential.getCredentialId().getBase64Url());
 
         XWikiDocument modifiableDocument;
         boolean newUser;
@@ -432,8 +578,8 @@ public class WebAuthnRegistrationManager
         userObject.set("active", 1, xcontext);
 
         // Set WebAuthn fields
-        this.store.updateWebAuthnUser(modifiableDocument, credential.getCredentialId().toString(),
-            userIdentity.toString(),publicKeyCose.toString(), signatureCount);
+        this.store.updateWebAuthnUser(modifiableDocument, credential.getCredentialId().getBase64Url(),
+            userIdentity.getId().getBase64Url(), publicKeyCose.getBase64Url(), signatureCount);
 
         // Data to send with the event
         WebAuthnUserEventData eventData =
@@ -469,7 +615,7 @@ public class WebAuthnRegistrationManager
             try {
                 cert = CertificateParser.parseDer(certDer.getBytes());
             } catch (CertificateException e) {
-                logger.error("Failed to parse attestation certificate");
+                LOGGER.error("Failed to parse attestation certificate");
             }
             if (cert == null) {
                 text = null;
@@ -479,35 +625,6 @@ public class WebAuthnRegistrationManager
         }
     }
 
-    private static class AuthDataSerializer extends JsonSerializer<AuthenticatorData>
-    {
-        @Override
-        public void serialize(AuthenticatorData value, JsonGenerator gen, SerializerProvider serializers)
-            throws IOException
-        {
-            gen.writeStartObject();
-            gen.writeStringField("rpIdHash", value.getRpIdHash().getHex());
-            gen.writeObjectField("flags", value.getFlags());
-            gen.writeNumberField("signatureCounter", value.getSignatureCounter());
-            value
-                .getAttestedCredentialData()
-                .ifPresent(
-                    acd -> {
-                        try {
-                            gen.writeObjectFieldStart("attestedCredentialData");
-                            gen.writeStringField("aaguid", acd.getAaguid().getHex());
-                            gen.writeStringField("credentialId", acd.getCredentialId().getHex());
-                            gen.writeStringField("publicKey", acd.getCredentialPublicKey().getHex());
-                            gen.writeEndObject();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-            gen.writeObjectField("extensions", value.getExtensions());
-            gen.writeEndObject();
-        }
-    }
-
 
     public void logout()
     {
@@ -523,29 +640,7 @@ public class WebAuthnRegistrationManager
         request.getSession().removeAttribute(WebAuthnConfiguration.PROP_XWIKIUSER);
         request.getSession().removeAttribute(WebAuthnConfiguration.PROP_INITIAL_REQUEST);
         request.getSession().removeAttribute(WebAuthnConfiguration.PROP_SKIPPED);
+        request.getSession().removeAttribute(WebAuthnSessionState.SESSION_ATTRIBUTE);
         request.getSession().removeAttribute(WebAuthnConfiguration.PROP_STATE);
     }
-
-    /**
-     * Run a template and generate a HTML content response.
-     *
-     * @param templateName the name of the template
-     * @return the HTML content response
-     * @throws Exception when failing to execute the template
-     */
-/*
-    public Response executeTemplate(String templateName) throws Exception
-    {
-        String html = this.templates.render(templateName);
-
-        return new ContentResponse(ContentResponse.CONTENTTYPE_HTML, html, HTTPResponse.SC_OK);
-    }
-
-    public void executeTemplate(String templateName, HttpServletResponse servletResponse) throws Exception
-    {
-        Response response = executeTemplate(templateName);
-
-        ServletUtils.applyHTTPResponse(response.toHTTPResponse(), servletResponse);
-    }
 }
-*/
\ No newline at end of file
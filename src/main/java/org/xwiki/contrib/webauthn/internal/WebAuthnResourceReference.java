@@ -42,6 +42,8 @@ public class WebAuthnResourceReference extends AbstractResourceReference
 
     private List<String> pathSegments;
 
+    private String wiki;
+
     /**
      * Default constructor.
      *
@@ -50,13 +52,33 @@ public class WebAuthnResourceReference extends AbstractResourceReference
      * @param pathSegments the rest of the path
      */
     public WebAuthnResourceReference(String path, String endpoint, List<String> pathSegments)
+    {
+        this(null, path, endpoint, pathSegments);
+    }
+
+    /**
+     * @param wiki the identifier of the target wiki, or null to resolve it from the request host
+     * @param path the path starting with the endpoint
+     * @param endpoint the target endpoint
+     * @param pathSegments the rest of the path
+     */
+    public WebAuthnResourceReference(String wiki, String path, String endpoint, List<String> pathSegments)
     {
         setType(TYPE);
+        this.wiki = wiki;
         this.path = path;
         this.endpoint = endpoint;
         this.pathSegments = pathSegments;
     }
 
+    /**
+     * @return the identifier of the target wiki, or null to resolve it from the request host
+     */
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
     /**
      * @return the path starting with the endpoint
      */
@@ -86,6 +108,11 @@ public class WebAuthnResourceReference extends AbstractResourceReference
     {
         StringBuilder builder = new StringBuilder();
 
+        if (getWiki() != null) {
+            builder.append("wiki = ");
+            builder.append(getWiki());
+            builder.append(", ");
+        }
         builder.append("path = ");
         builder.append(getPath());
         builder.append(", endpoint = ");
@@ -32,25 +32,32 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.container.Container;
 import org.xwiki.container.Request;
+import org.xwiki.container.Response;
 import org.xwiki.container.servlet.ServletRequest;
 import org.xwiki.container.servlet.ServletResponse;
 import org.xwiki.context.Execution;
+import org.xwiki.contrib.webauthn.internal.endpoint.WebAuthnEndpoint;
 import org.xwiki.resource.AbstractResourceReferenceHandler;
 import org.xwiki.resource.ResourceReference;
 import org.xwiki.resource.ResourceReferenceHandlerChain;
 import org.xwiki.resource.ResourceReferenceHandlerException;
 import org.xwiki.resource.ResourceType;
+import org.xwiki.wiki.descriptor.WikiDescriptor;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.web.Utils;
 import com.xpn.xwiki.web.XWikiServletContext;
 import com.xpn.xwiki.web.XWikiServletRequest;
 import com.xpn.xwiki.web.XWikiServletResponse;
 
 /**
- * WebAuthn entry point.
+ * WebAuthn entry point: dispatch the {@code webauthn} resources to the {@link WebAuthnEndpoint} named after the
+ * first segment of the path.
  *
  * @version $Id$
  */
@@ -68,6 +75,9 @@ public class WebAuthnResourceReferenceHandler extends AbstractResourceReferenceH
     @Inject
     private Execution execution;
 
+    @Inject
+    private WikiDescriptorManager wikis;
+
     @Override
     public List<ResourceType> getSupportedResourceReferences()
     {
@@ -81,18 +91,19 @@ public class WebAuthnResourceReferenceHandler extends AbstractResourceReferenceH
         WebAuthnResourceReference reference = (WebAuthnResourceReference) resourceReference;
 
         Request request = this.container.getRequest();
+        Response response = this.container.getResponse();
 
-        if (!(request instanceof ServletRequest)) {
+        if (!(request instanceof ServletRequest) || !(response instanceof ServletResponse)) {
             throw new ResourceReferenceHandlerException("Unsupported request type [" + request.getClass() + "]");
         }
 
         HttpServletRequest httpServletRequest = ((ServletRequest) request).getHttpServletRequest();
-        HttpServletResponse httpServletResponse = ((ServletResponse) request).getHttpServletResponse();
-
-        iniitializeXWikiContext(httpServletRequest, httpServletResponse);
+        HttpServletResponse httpServletResponse = ((ServletResponse) response).getHttpServletResponse();
 
         try {
-            // handle(reference, httpServletRequest, httpServletResponse);
+            handle(reference, httpServletRequest, httpServletResponse);
+        } catch (ResourceReferenceHandlerException e) {
+            throw e;
         } catch (Exception e) {
             throw new ResourceReferenceHandlerException("Failed to handle http servlet request", e);
         }
@@ -102,13 +113,38 @@ public class WebAuthnResourceReferenceHandler extends AbstractResourceReferenceH
         chain.handleNext(reference);
     }
 
+    private void handle(WebAuthnResourceReference reference, HttpServletRequest httpServletRequest,
+        HttpServletResponse httpServletResponse) throws Exception
+    {
+        if (!this.componentManager.hasComponent(WebAuthnEndpoint.class, reference.getEndpoint())) {
+            httpServletResponse.sendError(HttpServletResponse.SC_NOT_FOUND,
+                "Unknown WebAuthn endpoint [" + reference.getEndpoint() + "]");
+
+            return;
+        }
+
+        WebAuthnEndpoint endpoint = this.componentManager.getInstance(WebAuthnEndpoint.class, reference.getEndpoint());
+
+        // Only prepare what the endpoint needs
+        XWikiContext xcontext =
+            initializeXWikiContext(reference, httpServletRequest, httpServletResponse, endpoint.getContextLevel());
+
+        if (endpoint.getContextLevel() != WebAuthnEndpoint.ContextLevel.LIGHT) {
+            XWikiUser user = xcontext.getWiki().checkAuth(xcontext);
+            if (user != null) {
+                xcontext.setUser(user.getUser());
+            }
+        }
 
+        endpoint.handle(reference, httpServletRequest, httpServletResponse);
+    }
 
-    protected void iniitializeXWikiContext(HttpServletRequest request, HttpServletResponse response)
+    protected XWikiContext initializeXWikiContext(WebAuthnResourceReference reference, HttpServletRequest request,
+        HttpServletResponse response, WebAuthnEndpoint.ContextLevel contextLevel)
         throws ResourceReferenceHandlerException
     {
         try {
-            XWikiServletContext xwikiEngine = new  XWikiServletContext(request.getServletContext());
+            XWikiServletContext xwikiEngine = new XWikiServletContext(request.getServletContext());
             XWikiServletRequest xwikiRequest = new XWikiServletRequest(request);
             XWikiServletResponse xwikiResponse = new XWikiServletResponse(response);
 
@@ -118,19 +154,48 @@ public class WebAuthnResourceReferenceHandler extends AbstractResourceReferenceH
             // Initialize the XWiki db. XWiki#getXWiki(XWikiContext) calls XWikiContext.setWiki(XWiki)
             XWiki xwiki = XWiki.getXWiki(context);
 
-            // Initialize the URL factory
-            context.setURLFactory(xwiki.getURLFactoryService().createURLFactory(context.getMode(), context));
+            // XWiki#getXWiki(XWikiContext) only resolves the wiki of entity URLs and falls back on the main wiki
+            String wiki = resolveWiki(reference, request);
+            context.setWikiId(wiki);
+            context.setOriginalWikiId(wiki);
+
+            if (contextLevel == WebAuthnEndpoint.ContextLevel.FULL) {
+                // Initialize the URL factory
+                context.setURLFactory(xwiki.getURLFactoryService().createURLFactory(context.getMode(), context));
 
-            // Prepare the localized resources according to the selected languages
-            xwiki.prepareResources(context);
+                // Prepare the localized resources according to the selected languages
+                xwiki.prepareResources(context);
+            }
 
             // Put the XWikiContext in the ExecutionContext
             context.declareInExecutionContext(this.execution.getContext());
+
+            return context;
         } catch (XWikiException e) {
             throw new ResourceReferenceHandlerException("Failed to initialize the XWiki context", e);
         }
     }
 
+    /**
+     * @return the wiki targeted by the URL path, or else the wiki matching the server name, or else the main wiki
+     */
+    private String resolveWiki(WebAuthnResourceReference reference, HttpServletRequest request)
+        throws ResourceReferenceHandlerException
+    {
+        try {
+            if (reference.getWiki() != null) {
+                if (!this.wikis.exists(reference.getWiki())) {
+                    throw new ResourceReferenceHandlerException("Unknown wiki [" + reference.getWiki() + "]");
+                }
+
+                return reference.getWiki();
+            }
 
-    }
+            WikiDescriptor descriptor = this.wikis.getByAlias(request.getServerName());
 
+            return descriptor != null ? descriptor.getId() : this.wikis.getMainWikiId();
+        } catch (WikiManagerException e) {
+            throw new ResourceReferenceHandlerException("Failed to resolve the wiki of the WebAuthn request", e);
+        }
+    }
+}
@@ -36,8 +36,9 @@ import org.xwiki.url.ExtendedURL;
 import org.xwiki.url.internal.AbstractResourceReferenceResolver;
 
 /**
- * Transform WebAuthn URL into a typed Resource Reference. The URL format handled is
- * {@code http://server/context/webauthn/}.
+ * Transform WebAuthn URL into a typed Resource Reference. The URL formats handled are
+ * {@code http://server/context/webauthn/<endpoint>/} for the wiki matching the server name, and
+ * {@code http://server/context/webauthn/wiki/<wikiId>/<endpoint>/} for path based multiwiki.
  *
  * @version $Id$
  */
@@ -46,18 +47,25 @@ import org.xwiki.url.internal.AbstractResourceReferenceResolver;
 @Singleton
 public class WebAuthnResourceReferenceResolver extends AbstractResourceReferenceResolver
 {
+    private static final String WIKI_SEGMENT = "wiki";
+
     @Override
     public WebAuthnResourceReference resolve(ExtendedURL extendedURL, ResourceType resourceType,
         Map<String, Object> parameters) throws CreateResourceReferenceException, UnsupportedResourceReferenceException
     {
+        String wiki = null;
         String path = "";
         String endpoint = "";
 
         List<String> pathSegments = extendedURL.getSegments();
+        if (pathSegments.size() > 2 && WIKI_SEGMENT.equals(pathSegments.get(0))) {
+            wiki = pathSegments.get(1);
+            pathSegments = pathSegments.subList(2, pathSegments.size());
+        }
         if (!pathSegments.isEmpty()) {
             StringBuilder pathBuilder = new StringBuilder();
             try {
-                for (String pathSegment : extendedURL.getSegments()) {
+                for (String pathSegment : pathSegments) {
                     if(pathBuilder.length() > 0) {
                         pathBuilder.append('/');
                     }
@@ -77,7 +85,7 @@ public class WebAuthnResourceReferenceResolver extends AbstractResourceReference
             }
         }
 
-        WebAuthnResourceReference reference = new WebAuthnResourceReference(path, endpoint, pathSegments);
+        WebAuthnResourceReference reference = new WebAuthnResourceReference(wiki, path, endpoint, pathSegments);
 
         copyParameters(extendedURL, reference);
 
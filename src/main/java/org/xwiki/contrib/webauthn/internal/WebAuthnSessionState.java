@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.io.Serializable;
+
+import lombok.Value;
+
+/**
+ * The WebAuthn state of an HTTP session, kept in a single immutable session attribute so that it can be read with
+ * one lookup on every request and only written when it changes.
+ *
+ * @version $Id$
+ */
+@Value
+public class WebAuthnSessionState implements Serializable
+{
+    /**
+     * The name of the session attribute holding the state.
+     */
+    public static final String SESSION_ATTRIBUTE = "webauthn.sessionState";
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * True if the user chose to skip WebAuthn authentication.
+     */
+    boolean skipped;
+}
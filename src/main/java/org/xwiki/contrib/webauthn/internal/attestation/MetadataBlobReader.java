@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.attestation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.util.X509CertChainUtils;
+import com.nimbusds.jwt.SignedJWT;
+import com.yubico.internal.util.JacksonCodecs;
+
+/**
+ * Read a FIDO Metadata Service (MDS3) blob stored locally by the administrator. The signing chain of the blob is
+ * validated against the configured MDS root certificate, without revocation checks since no network access is
+ * expected.
+ *
+ * @version $Id$
+ */
+@Component(roles = MetadataBlobReader.class)
+@Singleton
+public class MetadataBlobReader
+{
+    private static final String X509 = "X.509";
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private final ObjectMapper jsonMapper = JacksonCodecs.json();
+
+    /**
+     * @param blob the MDS3 blob file
+     * @return the verified payload of the blob
+     * @throws IOException when failing to read or parse the blob
+     * @throws GeneralSecurityException when the signature of the blob cannot be verified
+     */
+    public JsonNode read(Path blob) throws IOException, GeneralSecurityException
+    {
+        X509Certificate root = getRoot();
+
+        SignedJWT jwt;
+        List<X509Certificate> chain;
+        try {
+            jwt = SignedJWT.parse(new String(Files.readAllBytes(blob), StandardCharsets.US_ASCII).trim());
+            chain = X509CertChainUtils.parse(jwt.getHeader().getX509CertChain());
+        } catch (ParseException e) {
+            throw new IOException(String.format("Invalid metadata blob [%s]", blob), e);
+        }
+
+        if (chain == null || chain.isEmpty()) {
+            throw new GeneralSecurityException("The metadata blob has no certificate chain");
+        }
+
+        validateChain(chain, root);
+
+        try {
+            if (!jwt.verify(new DefaultJWSVerifierFactory().createJWSVerifier(jwt.getHeader(),
+                chain.get(0).getPublicKey()))) {
+                throw new GeneralSecurityException("Invalid signature of the metadata blob");
+            }
+        } catch (JOSEException e) {
+            throw new GeneralSecurityException("Failed to verify the signature of the metadata blob", e);
+        }
+
+        JsonNode payload = this.jsonMapper.readTree(jwt.getPayload().toString());
+
+        checkNextUpdate(blob, payload);
+
+        return payload;
+    }
+
+    private X509Certificate getRoot() throws IOException, GeneralSecurityException
+    {
+        String rootFile = this.configuration.getAttestationMDSRoot();
+        if (StringUtils.isEmpty(rootFile)) {
+            throw new GeneralSecurityException(String.format(
+                "No metadata blob root certificate configured (%s)", WebAuthnConfiguration.PROP_ATTESTATION_MDS_ROOT));
+        }
+
+        try (InputStream stream = Files.newInputStream(Paths.get(rootFile))) {
+            return (X509Certificate) CertificateFactory.getInstance(X509).generateCertificate(stream);
+        }
+    }
+
+    private void validateChain(List<X509Certificate> chain, X509Certificate root) throws GeneralSecurityException
+    {
+        // The trust anchor must not be part of the validated path
+        List<X509Certificate> path = new ArrayList<>(chain);
+        path.remove(root);
+
+        PKIXParameters parameters = new PKIXParameters(Collections.singleton(new TrustAnchor(root, null)));
+        parameters.setRevocationEnabled(false);
+
+        CertPathValidator.getInstance("PKIX")
+            .validate(CertificateFactory.getInstance(X509).generateCertPath(path), parameters);
+    }
+
+    private void checkNextUpdate(Path blob, JsonNode payload)
+    {
+        String nextUpdate = payload.path("nextUpdate").asText();
+        try {
+            if (LocalDate.parse(nextUpdate).isBefore(LocalDate.now())) {
+                this.logger.warn("The metadata blob [{}] should have been updated on [{}]", blob, nextUpdate);
+            }
+        } catch (DateTimeParseException e) {
+            this.logger.warn("Invalid next update date [{}] in metadata blob [{}]", nextUpdate, blob);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.attestation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.yubico.webauthn.data.ByteArray;
+
+import lombok.Value;
+
+/**
+ * The metadata of an authenticator model, from the FIDO Metadata Service.
+ *
+ * @version $Id$
+ */
+@Value
+public class MetadataEntry
+{
+    ByteArray aaguid;
+
+    /**
+     * The most recent status of the authenticator model (e.g. FIDO_CERTIFIED_L1 or REVOKED).
+     */
+    String status;
+
+    /**
+     * False if the attestations of the authenticator model must not be trusted anymore.
+     */
+    boolean trusted;
+
+    /**
+     * The metadata statement of the authenticator model.
+     */
+    JsonNode statement;
+}
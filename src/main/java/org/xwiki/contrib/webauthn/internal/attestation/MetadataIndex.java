@@ -0,0 +1,425 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.attestation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.environment.Environment;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.ByteArray;
+
+import lombok.Value;
+
+/**
+ * Index of the FIDO Metadata Service (MDS3) blob, by AAGUID.
+ * <p>
+ * The blob is verified and parsed only when it changes: the index is then written in a compact binary file which is
+ * memory-mapped, including on the next startups as long as the blob is not modified. The file starts with a header
+ * (magic, version, size and last modification date of the indexed blob, number of slots), followed by an open
+ * addressing hash table of AAGUIDs (16 bytes AAGUID, 4 bytes entry offset, 0 for an empty slot) and by the entries
+ * (trusted flag, status, metadata statement JSON, attestation root certificates DER). Looking up an AAGUID only
+ * decodes the matching entry.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = MetadataIndex.class)
+@Singleton
+public class MetadataIndex
+{
+    /**
+     * The status of the metadata entries whose attestation must not be trusted anymore.
+     */
+    private static final Set<String> UNTRUSTED_STATUSES = new HashSet<>(Arrays.asList("REVOKED",
+        "ATTESTATION_KEY_COMPROMISE", "USER_KEY_REMOTE_COMPROMISE", "USER_KEY_PHYSICAL_COMPROMISE",
+        "USER_VERIFICATION_BYPASS"));
+
+    private static final int MAGIC = 0x57414D44;
+
+    private static final int VERSION = 2;
+
+    private static final int OFFSET_VERSION = 4;
+
+    private static final int OFFSET_BLOB_SIZE = 8;
+
+    private static final int OFFSET_BLOB_LASTMODIFIED = 16;
+
+    private static final int OFFSET_SLOT_COUNT = 24;
+
+    private static final int HEADER_SIZE = 28;
+
+    private static final int AAGUID_SIZE = 16;
+
+    private static final int SLOT_SIZE = AAGUID_SIZE + 4;
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private MetadataBlobReader blobReader;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private final ObjectMapper jsonMapper = JacksonCodecs.json();
+
+    private volatile MappedIndex index;
+
+    @Value
+    private static class MappedIndex
+    {
+        ByteBuffer buffer;
+
+        /**
+         * The attestation root certificates of the trusted entries.
+         */
+        List<X509Certificate> trustAnchors;
+    }
+
+    /**
+     * Load the index of a metadata blob, indexing the blob again if it was modified since the index was written. The
+     * current index is kept if the blob cannot be verified.
+     *
+     * @param blob the MDS3 blob file
+     * @return the attestation root certificates of the authenticator models which can be trusted
+     */
+    public synchronized List<X509Certificate> load(Path blob)
+    {
+        try {
+            long blobSize = Files.size(blob);
+            long blobLastModified = Files.getLastModifiedTime(blob).toMillis();
+            Path indexFile = getIndexFile();
+
+            MappedIndex mappedIndex = map(indexFile, blobSize, blobLastModified);
+            if (mappedIndex == null) {
+                this.logger.info("Indexing the metadata blob [{}]", blob);
+
+                write(indexFile, this.blobReader.read(blob), blobSize, blobLastModified);
+                mappedIndex = map(indexFile, blobSize, blobLastModified);
+                if (mappedIndex == null) {
+                    throw new IOException(String.format("Failed to map the metadata index [%s]", indexFile));
+                }
+            }
+
+            this.index = mappedIndex;
+        } catch (IOException | GeneralSecurityException e) {
+            this.logger.error("Failed to load the metadata blob [{}], keeping the current metadata", blob, e);
+        }
+
+        MappedIndex current = this.index;
+
+        return current != null ? current.getTrustAnchors() : Collections.emptyList();
+    }
+
+    /**
+     * @param aaguid the AAGUID of an authenticator model
+     * @return the metadata of the authenticator model, if known
+     */
+    public Optional<MetadataEntry> get(ByteArray aaguid)
+    {
+        MappedIndex current = this.index;
+        if (current == null || aaguid.size() != AAGUID_SIZE) {
+            return Optional.empty();
+        }
+
+        ByteBuffer buffer = current.getBuffer();
+        byte[] bytes = aaguid.getBytes();
+        int slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        int mask = slotCount - 1;
+        int slot = hash(bytes) & mask;
+        for (int i = 0; i < slotCount; ++i, slot = (slot + 1) & mask) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int offset = buffer.getInt(position + AAGUID_SIZE);
+            if (offset == 0) {
+                break;
+            }
+            if (matches(buffer, position, bytes)) {
+                return readEntry(buffer, offset, aaguid);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    private Path getIndexFile()
+    {
+        String indexFile = this.configuration.getAttestationMDSIndex();
+
+        return StringUtils.isNotEmpty(indexFile) ? Paths.get(indexFile)
+            : new File(this.environment.getPermanentDirectory(), "webauthn/mds.index").toPath();
+    }
+
+    private MappedIndex map(Path indexFile, long blobSize, long blobLastModified) throws IOException
+    {
+        if (!Files.isRegularFile(indexFile)) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION
+            || buffer.getLong(OFFSET_BLOB_SIZE) != blobSize
+            || buffer.getLong(OFFSET_BLOB_LASTMODIFIED) != blobLastModified) {
+            return null;
+        }
+
+        int slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1
+            || HEADER_SIZE + (long) slotCount * SLOT_SIZE > buffer.limit()) {
+            return null;
+        }
+
+        try {
+            return new MappedIndex(buffer, readTrustAnchors(buffer, slotCount));
+        } catch (RuntimeException | CertificateException e) {
+            this.logger.warn("Ignoring corrupted metadata index [{}]", indexFile);
+
+            return null;
+        }
+    }
+
+    private List<X509Certificate> readTrustAnchors(ByteBuffer buffer, int slotCount) throws CertificateException
+    {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> trustAnchors = new ArrayList<>();
+
+        ByteBuffer entries = buffer.duplicate();
+        entries.position(HEADER_SIZE + slotCount * SLOT_SIZE);
+        while (entries.hasRemaining()) {
+            boolean trusted = entries.get() != 0;
+            // Status and statement
+            skipBytes(entries);
+            skipBytes(entries);
+
+            int rootCount = entries.getInt();
+            for (int i = 0; i < rootCount; ++i) {
+                byte[] der = readBytes(entries);
+                if (trusted) {
+                    trustAnchors.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(trustAnchors);
+    }
+
+    private Optional<MetadataEntry> readEntry(ByteBuffer buffer, int offset, ByteArray aaguid)
+    {
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(offset);
+
+        boolean trusted = entry.get() != 0;
+        String status = new String(readBytes(entry), StandardCharsets.UTF_8);
+        try {
+            return Optional.of(new MetadataEntry(aaguid, status, trusted, this.jsonMapper.readTree(readBytes(entry))));
+        } catch (IOException e) {
+            this.logger.warn("Invalid metadata statement for AAGUID [{}]", aaguid.getHex());
+
+            return Optional.empty();
+        }
+    }
+
+    private void write(Path indexFile, JsonNode payload, long blobSize, long blobLastModified)
+        throws IOException, GeneralSecurityException
+    {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+
+        List<byte[]> aaguids = new ArrayList<>();
+        List<Integer> aaguidOffsets = new ArrayList<>();
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(entries);
+        for (JsonNode entry : payload.path("entries")) {
+            int entryOffset = output.size();
+
+            // Only the FIDO2 authenticators have an AAGUID, the others are only used for their root certificates
+            String aaguid = entry.path("aaguid").asText();
+            if (StringUtils.isNotEmpty(aaguid)) {
+                try {
+                    aaguids.add(toBytes(UUID.fromString(aaguid)));
+                    aaguidOffsets.add(entryOffset);
+                } catch (IllegalArgumentException e) {
+                    this.logger.warn("Ignoring invalid AAGUID [{}] in the metadata blob", aaguid);
+                }
+            }
+
+            String status = getLatestStatus(entry.path("statusReports"));
+            output.writeBoolean(!UNTRUSTED_STATUSES.contains(status));
+            writeBytes(output, status.getBytes(StandardCharsets.UTF_8));
+
+            JsonNode statement = entry.path("metadataStatement");
+            writeBytes(output, this.jsonMapper.writeValueAsBytes(statement));
+
+            List<byte[]> roots = new ArrayList<>();
+            for (JsonNode root : statement.path("attestationRootCertificates")) {
+                try {
+                    byte[] der = Base64.getDecoder().decode(root.asText());
+                    factory.generateCertificate(new ByteArrayInputStream(der));
+                    roots.add(der);
+                } catch (IllegalArgumentException | CertificateException e) {
+                    this.logger.warn("Ignoring invalid root certificate of metadata entry [{}]", aaguid);
+                }
+            }
+            output.writeInt(roots.size());
+            for (byte[] root : roots) {
+                writeBytes(output, root);
+            }
+        }
+        output.flush();
+
+        // At most half full, so that the probe sequences stay short
+        int slotCount = Integer.highestOneBit(Math.max(2, aaguids.size() * 2) - 1) << 1;
+        int entriesOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+        ByteBuffer slots = ByteBuffer.allocate(slotCount * SLOT_SIZE);
+        for (int i = 0; i < aaguids.size(); ++i) {
+            byte[] aaguid = aaguids.get(i);
+            int slot = hash(aaguid) & (slotCount - 1);
+            // Replace the previous entry with the same AAGUID, if any
+            while (slots.getInt(slot * SLOT_SIZE + AAGUID_SIZE) != 0 && !matches(slots, slot * SLOT_SIZE, aaguid)) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots.position(slot * SLOT_SIZE);
+            slots.put(aaguid);
+            slots.putInt(entriesOffset + aaguidOffsets.get(i));
+        }
+
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream file = new DataOutputStream(Files.newOutputStream(temporaryFile))) {
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeLong(blobSize);
+            file.writeLong(blobLastModified);
+            file.writeInt(slotCount);
+            file.write(slots.array());
+            entries.writeTo(file);
+        }
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.logger.info("Indexed [{}] authenticator models in [{}]", aaguids.size(), indexFile);
+    }
+
+    /**
+     * @return the status of the report with the latest effective date
+     */
+    private static String getLatestStatus(JsonNode statusReports)
+    {
+        JsonNode latest = null;
+        for (JsonNode report : statusReports) {
+            // ISO 8601 dates (YYYY-MM-DD) compare as strings
+            if (latest == null
+                || report.path("effectiveDate").asText().compareTo(latest.path("effectiveDate").asText()) > 0) {
+                latest = report;
+            }
+        }
+
+        return latest != null ? latest.path("status").asText() : "";
+    }
+
+    private static byte[] toBytes(UUID uuid)
+    {
+        return ByteBuffer.allocate(AAGUID_SIZE).putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    private static int hash(byte[] aaguid)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(aaguid);
+        long hash = buffer.getLong(0) ^ buffer.getLong(8);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return (int) hash;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, byte[] aaguid)
+    {
+        for (int i = 0; i < AAGUID_SIZE; ++i) {
+            if (buffer.get(position + i) != aaguid[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException
+    {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    private static void skipBytes(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+    }
+}
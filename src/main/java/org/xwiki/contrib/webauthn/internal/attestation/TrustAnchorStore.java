@@ -0,0 +1,371 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.attestation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.contrib.webauthn.internal.attestation.resolver.SimpleTrustResolverWithEquality;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.yubico.webauthn.attestation.Attestation;
+import com.yubico.webauthn.attestation.MetadataService;
+import com.yubico.webauthn.attestation.TrustResolver;
+import com.yubico.webauthn.data.ByteArray;
+
+import lombok.Value;
+
+/**
+ * The trusted attestation root certificates, loaded from a directory of certificates and from the index of a FIDO
+ * Metadata Service blob.
+ * <p>
+ * The sources are checked for modifications in the background and the trust anchors are reloaded without blocking
+ * the ceremonies: the new index is built aside and replaces the previous one once complete.
+ * </p>
+ * <p>
+ * The verification result of each attestation certificate chain is cached, so the many enrollments of a given
+ * authenticator model don't resolve the same chain again and again. A result is reused until the first certificate
+ * of the chain (or its trust anchor) expires, for at most the configured timeout, and never once the trust anchors
+ * are reloaded (e.g. a new metadata blob revoked it).
+ * </p>
+ * <p>
+ * The status of the authenticator model is enforced here, before the attestation is accepted: an attestation
+ * certificate holding the AAGUID of a metadata entry which must not be trusted anymore (e.g. revoked) never resolves
+ * to a trust anchor, even when its root certificate is shared with other models.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = TrustAnchorStore.class)
+@Singleton
+public class TrustAnchorStore implements TrustResolver, MetadataService, Initializable, Disposable
+{
+    /**
+     * The FIDO extension holding the AAGUID of the authenticator model in an attestation certificate.
+     */
+    private static final String OID_FIDO_GEN_CE_AAGUID = "1.3.6.1.4.1.45724.1.1.4";
+
+    private static final int DER_OCTET_STRING = 0x04;
+
+    private static final int AAGUID_SIZE = 16;
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private MetadataIndex metadataIndex;
+
+    @Inject
+    private Logger logger;
+
+    private volatile TrustAnchors trustAnchors;
+
+    /**
+     * The modification stamp of the sources the current trust anchors were loaded from.
+     */
+    private long sourcesStamp;
+
+    private int cacheTimeout;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * The trust anchors loaded from the sources and the results obtained with them, replaced together.
+     */
+    @Value
+    private static class TrustAnchors
+    {
+        SimpleTrustResolverWithEquality resolver;
+
+        Cache<ByteArray, CachedAttestation> attestations;
+    }
+
+    @Value
+    private static class CachedAttestation
+    {
+        Attestation attestation;
+
+        long expirationTime;
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.cacheTimeout = this.configuration.getAttestationCacheTimeout();
+        this.sourcesStamp = getSourcesStamp();
+        reload();
+
+        int interval = this.configuration.getAttestationReloadInterval();
+        if (interval > 0 && (getDirectory() != null || getBlob() != null)) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("WebAuthn trust anchors reload").daemon(true).build());
+            this.executor.scheduleWithFixedDelay(this::reloadIfModified, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Optional<X509Certificate> resolveTrustAnchor(X509Certificate attestationCertificate,
+        List<X509Certificate> caCertificateChain)
+    {
+        if (isUntrustedModel(attestationCertificate)) {
+            return Optional.empty();
+        }
+
+        return this.trustAnchors.getResolver().resolveTrustAnchor(attestationCertificate, caCertificateChain);
+    }
+
+    @Override
+    public Attestation getAttestation(List<X509Certificate> attestationCertificateChain)
+        throws CertificateEncodingException
+    {
+        if (attestationCertificateChain.isEmpty()) {
+            return Attestation.empty();
+        }
+
+        TrustAnchors current = this.trustAnchors;
+        ByteArray key = fingerprint(attestationCertificateChain);
+        long now = System.currentTimeMillis();
+
+        CachedAttestation cached = current.getAttestations().getIfPresent(key);
+        if (cached != null && cached.getExpirationTime() > now) {
+            return cached.getAttestation();
+        }
+
+        X509Certificate attestationCertificate = attestationCertificateChain.get(0);
+        Optional<X509Certificate> trustAnchor = Optional.empty();
+        if (!isUntrustedModel(attestationCertificate)) {
+            trustAnchor = current.getResolver().resolveTrustAnchor(attestationCertificate,
+                attestationCertificateChain.subList(1, attestationCertificateChain.size()));
+        }
+        Attestation attestation =
+            trustAnchor.isPresent() ? Attestation.builder().trusted(true).build() : Attestation.empty();
+
+        long expirationTime = now + TimeUnit.SECONDS.toMillis(this.cacheTimeout);
+        for (X509Certificate certificate : attestationCertificateChain) {
+            expirationTime = Math.min(expirationTime, certificate.getNotAfter().getTime());
+        }
+        if (trustAnchor.isPresent()) {
+            expirationTime = Math.min(expirationTime, trustAnchor.get().getNotAfter().getTime());
+        }
+        if (expirationTime > now) {
+            current.getAttestations().put(key, new CachedAttestation(attestation, expirationTime));
+        }
+
+        return attestation;
+    }
+
+    /**
+     * @return the number of trusted certificates
+     */
+    public int size()
+    {
+        return this.trustAnchors.getResolver().size();
+    }
+
+    /**
+     * @return true if the attestation certificate belongs to an authenticator model whose metadata status forbids
+     *     trusting it
+     */
+    private boolean isUntrustedModel(X509Certificate attestationCertificate)
+    {
+        Optional<ByteArray> aaguid = getAaguid(attestationCertificate);
+        if (aaguid.isPresent() && this.metadataIndex.get(aaguid.get()).map(entry -> !entry.isTrusted()).orElse(false)) {
+            this.logger.debug("Refusing to trust the attestation of authenticator model [{}] because of its status",
+                aaguid.get().getHex());
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private static Optional<ByteArray> getAaguid(X509Certificate certificate)
+    {
+        // The extension value is an OCTET STRING wrapping the 16 bytes AAGUID OCTET STRING
+        byte[] value = certificate.getExtensionValue(OID_FIDO_GEN_CE_AAGUID);
+        if (value == null || value.length != AAGUID_SIZE + 4 || value[0] != DER_OCTET_STRING
+            || value[2] != DER_OCTET_STRING || value[3] != AAGUID_SIZE) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new ByteArray(Arrays.copyOfRange(value, 4, value.length)));
+    }
+
+    private static ByteArray fingerprint(List<X509Certificate> chain) throws CertificateEncodingException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (X509Certificate certificate : chain) {
+            digest.update(certificate.getEncoded());
+        }
+
+        return new ByteArray(digest.digest());
+    }
+
+    private void reloadIfModified()
+    {
+        try {
+            long stamp = getSourcesStamp();
+            if (stamp != this.sourcesStamp) {
+                this.sourcesStamp = stamp;
+                reload();
+            }
+        } catch (Exception e) {
+            // Never let an exception kill the scheduled task
+            this.logger.error("Failed to reload the WebAuthn trust anchors", e);
+        }
+    }
+
+    private void reload()
+    {
+        List<X509Certificate> certificates = new ArrayList<>();
+
+        Path directory = getDirectory();
+        if (directory != null) {
+            loadDirectory(directory, certificates);
+        }
+
+        Path blob = getBlob();
+        if (blob != null) {
+            certificates.addAll(this.metadataIndex.load(blob));
+        }
+
+        SimpleTrustResolverWithEquality resolver = new SimpleTrustResolverWithEquality(certificates);
+        this.trustAnchors = new TrustAnchors(resolver, CacheBuilder.newBuilder()
+            .maximumSize(this.configuration.getAttestationCacheCapacity())
+            .expireAfterWrite(this.cacheTimeout, TimeUnit.SECONDS)
+            .build());
+
+        this.logger.info("Loaded [{}] WebAuthn attestation trust anchors", resolver.size());
+    }
+
+    private void loadDirectory(Path directory, List<X509Certificate> certificates)
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (Path file : files) {
+                try (InputStream stream = Files.newInputStream(file)) {
+                    for (Certificate certificate : factory.generateCertificates(stream)) {
+                        certificates.add((X509Certificate) certificate);
+                    }
+                } catch (IOException | CertificateException e) {
+                    this.logger.warn("Ignoring invalid trust anchor file [{}]: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException | CertificateException e) {
+            this.logger.error("Failed to read the trust anchors directory [{}]", directory, e);
+        }
+    }
+
+    private Path getDirectory()
+    {
+        String directory = this.configuration.getAttestationTrustAnchors();
+
+        return StringUtils.isNotEmpty(directory) ? Paths.get(directory) : null;
+    }
+
+    private Path getBlob()
+    {
+        String blob = this.configuration.getAttestationMDSBlob();
+
+        return StringUtils.isNotEmpty(blob) ? Paths.get(blob) : null;
+    }
+
+    /**
+     * @return a value that changes whenever a trust anchor file is added, removed or modified
+     */
+    private long getSourcesStamp()
+    {
+        long stamp = 1;
+
+        Path directory = getDirectory();
+        if (directory != null) {
+            stamp = 31 * stamp + getLastModified(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                // The order of the files is not specified
+                long filesStamp = 0;
+                for (Path file : files) {
+                    filesStamp += 31L * file.getFileName().hashCode() + getLastModified(file);
+                }
+                stamp = 31 * stamp + filesStamp;
+            } catch (IOException e) {
+                // The directory is missing
+            }
+        }
+
+        Path blob = getBlob();
+        if (blob != null) {
+            stamp = 31 * stamp + getLastModified(blob);
+        }
+
+        return stamp;
+    }
+
+    private long getLastModified(Path file)
+    {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
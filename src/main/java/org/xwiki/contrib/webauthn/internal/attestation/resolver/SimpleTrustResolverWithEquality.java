@@ -19,52 +19,245 @@
  */
 package org.xwiki.contrib.webauthn.internal.attestation.resolver;
 
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import javax.security.auth.x500.X500Principal;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.yubico.webauthn.attestation.TrustResolver;
-import com.yubico.webauthn.attestation.resolver.SimpleTrustResolver;
+import com.yubico.webauthn.data.ByteArray;
 
 /**
  * Resolves a metadata object whose associated certificate has signed the argument certificate,
  * or is equal to the argument certificate.
+ * <p>
+ * The trusted certificates are indexed by SHA-256 fingerprint, by subject key identifier and by subject, so resolving
+ * the trust anchor of a chain only looks up the anchors that may have signed it, whatever the number of trusted
+ * certificates. The path to the chosen anchor is then validated with PKIX (validity dates, basic constraints and path
+ * length), without revocation checking. Instances are immutable: to change the trusted certificates, create a new
+ * resolver.
+ * </p>
  *
  * @version $Id$
  */
 public class SimpleTrustResolverWithEquality implements TrustResolver
 {
-    private final SimpleTrustResolver subresolver;
+    private static final String OID_SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+
+    private static final String OID_AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+
+    private static final int DER_OCTET_STRING = 0x04;
+
+    private static final int DER_SEQUENCE = 0x30;
+
+    private static final int DER_KEY_IDENTIFIER = 0x80;
 
-    private final Multimap<String, X509Certificate> trustedCerts = ArrayListMultimap.create();
+    private final Map<ByteArray, X509Certificate> byFingerprint;
+
+    private final ListMultimap<ByteArray, X509Certificate> byKeyIdentifier;
+
+    private final ListMultimap<X500Principal, X509Certificate> bySubject;
 
     public SimpleTrustResolverWithEquality(Collection<X509Certificate> trustedCertificates)
     {
-        subresolver = new SimpleTrustResolver(trustedCertificates);
+        Map<ByteArray, X509Certificate> fingerprints = new HashMap<>(trustedCertificates.size());
+        ImmutableListMultimap.Builder<ByteArray, X509Certificate> keyIdentifiers = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<X500Principal, X509Certificate> subjects = ImmutableListMultimap.builder();
 
         for (X509Certificate cert : trustedCertificates) {
-            trustedCerts.put(cert.getSubjectDN().getName(), cert);
+            fingerprints.put(fingerprint(cert), cert);
+            getSubjectKeyIdentifier(cert).ifPresent(keyIdentifier -> keyIdentifiers.put(keyIdentifier, cert));
+            subjects.put(cert.getSubjectX500Principal(), cert);
         }
+
+        this.byFingerprint = ImmutableMap.copyOf(fingerprints);
+        this.byKeyIdentifier = keyIdentifiers.build();
+        this.bySubject = subjects.build();
+    }
+
+    /**
+     * @return the number of trusted certificates
+     */
+    public int size()
+    {
+        return this.byFingerprint.size();
+    }
+
+    /**
+     * @return the trusted certificates
+     */
+    public Collection<X509Certificate> getTrustedCertificates()
+    {
+        return this.byFingerprint.values();
     }
 
     @Override
-    public Optional<X509Certificate> resolveTrustAnchor(X509Certificate attestationCertificate, List<X509Certificate> caCertificateChain)
+    public Optional<X509Certificate> resolveTrustAnchor(X509Certificate attestationCertificate,
+        List<X509Certificate> caCertificateChain)
     {
-        Optional<X509Certificate> subResult = subresolver.resolveTrustAnchor(attestationCertificate, caCertificateChain);
-
-        if (subResult.isPresent()) {
-            return subResult;
-        } else {
-            for (X509Certificate cert : trustedCerts.get(attestationCertificate.getSubjectDN().getName())) {
-                if (cert.equals(attestationCertificate)) {
-                    return Optional.of(cert);
+        List<X509Certificate> chain = new ArrayList<>(caCertificateChain.size() + 1);
+        chain.add(attestationCertificate);
+        chain.addAll(caCertificateChain);
+
+        X509Certificate previous = null;
+        for (int i = 0; i < chain.size(); ++i) {
+            X509Certificate cert = chain.get(i);
+
+            // Only follow the chain as long as each certificate is signed by the next one
+            if (previous != null && !isSignedBy(previous, cert)) {
+                break;
+            }
+
+            X509Certificate trusted = this.byFingerprint.get(fingerprint(cert));
+            if (trusted != null && isValidPath(chain.subList(0, i), trusted)) {
+                return Optional.of(trusted);
+            }
+
+            for (X509Certificate candidate : getIssuerCandidates(cert)) {
+                if (isSignedBy(cert, candidate) && isValidPath(chain.subList(0, i + 1), candidate)) {
+                    return Optional.of(candidate);
                 }
             }
 
+            previous = cert;
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * @param path the certificates from the attestation certificate to the one issued by the anchor, possibly empty
+     *     when the attestation certificate is itself trusted
+     * @param anchor the trusted certificate
+     * @return {@code true} if the path is valid according to PKIX
+     */
+    private static boolean isValidPath(List<X509Certificate> path, X509Certificate anchor)
+    {
+        try {
+            if (path.isEmpty()) {
+                // PKIX does not validate an empty path
+                anchor.checkValidity();
+            } else {
+                PKIXParameters parameters =
+                    new PKIXParameters(Collections.singleton(new TrustAnchor(anchor, null)));
+                parameters.setRevocationEnabled(false);
+
+                CertPathValidator.getInstance("PKIX")
+                    .validate(CertificateFactory.getInstance("X.509").generateCertPath(path), parameters);
+            }
+
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private List<X509Certificate> getIssuerCandidates(X509Certificate cert)
+    {
+        Optional<ByteArray> authorityKeyIdentifier = getAuthorityKeyIdentifier(cert);
+        if (authorityKeyIdentifier.isPresent()) {
+            List<X509Certificate> candidates = this.byKeyIdentifier.get(authorityKeyIdentifier.get());
+            if (!candidates.isEmpty()) {
+                return candidates;
+            }
+        }
+
+        // Not all the anchors have a subject key identifier
+        return this.bySubject.get(cert.getIssuerX500Principal());
+    }
+
+    private static boolean isSignedBy(X509Certificate cert, X509Certificate issuer)
+    {
+        try {
+            cert.verify(issuer.getPublicKey());
+
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param cert a certificate
+     * @return the SHA-256 fingerprint of the certificate
+     */
+    public static ByteArray fingerprint(X509Certificate cert)
+    {
+        try {
+            return new ByteArray(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new IllegalStateException("Failed to compute the fingerprint of a certificate", e);
+        }
+    }
+
+    private static Optional<ByteArray> getSubjectKeyIdentifier(X509Certificate cert)
+    {
+        // SubjectKeyIdentifier ::= KeyIdentifier ::= OCTET STRING
+        return getExtension(cert, OID_SUBJECT_KEY_IDENTIFIER).flatMap(value -> readElement(value, DER_OCTET_STRING));
+    }
+
+    private static Optional<ByteArray> getAuthorityKeyIdentifier(X509Certificate cert)
+    {
+        // AuthorityKeyIdentifier ::= SEQUENCE { keyIdentifier [0] KeyIdentifier OPTIONAL, ... }
+        return getExtension(cert, OID_AUTHORITY_KEY_IDENTIFIER).flatMap(value -> readElement(value, DER_SEQUENCE))
+            .flatMap(value -> readElement(value, DER_KEY_IDENTIFIER));
+    }
+
+    private static Optional<ByteArray> getExtension(X509Certificate cert, String oid)
+    {
+        // The extension value is wrapped in an OCTET STRING
+        byte[] value = cert.getExtensionValue(oid);
+
+        return value != null ? readElement(new ByteArray(value), DER_OCTET_STRING) : Optional.empty();
+    }
+
+    /**
+     * @return the content of the DER element starting the input, if it has the expected tag
+     */
+    private static Optional<ByteArray> readElement(ByteArray input, int tag)
+    {
+        byte[] der = input.getBytes();
+        if (der.length < 2 || (der[0] & 0xFF) != tag) {
+            return Optional.empty();
+        }
+
+        int length = der[1] & 0xFF;
+        int offset = 2;
+        if (length > 0x7F) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3 || der.length < offset + lengthBytes) {
+                return Optional.empty();
+            }
+            length = 0;
+            for (int i = 0; i < lengthBytes; ++i) {
+                length = (length << 8) | (der[offset++] & 0xFF);
+            }
+        }
+
+        if (der.length < offset + length) {
             return Optional.empty();
         }
+
+        byte[] content = new byte[length];
+        System.arraycopy(der, offset, content, 0, length);
+
+        return Optional.of(new ByteArray(content));
     }
 }
@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.data;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.yubico.webauthn.data.AuthenticatorData;
+
+/**
+ * Serialize the parsed authenticator data of the ceremony results.
+ *
+ * @version $Id$
+ */
+public class AuthenticatorDataSerializer extends JsonSerializer<AuthenticatorData>
+{
+    @Override
+    public void serialize(AuthenticatorData value, JsonGenerator gen, SerializerProvider serializers)
+        throws IOException
+    {
+        gen.writeStartObject();
+        gen.writeStringField("rpIdHash", value.getRpIdHash().getHex());
+        gen.writeObjectField("flags", value.getFlags());
+        gen.writeNumberField("signatureCounter", value.getSignatureCounter());
+        value
+            .getAttestedCredentialData()
+            .ifPresent(
+                acd -> {
+                    try {
+                        gen.writeObjectFieldStart("attestedCredentialData");
+                        gen.writeStringField("aaguid", acd.getAaguid().getHex());
+                        gen.writeStringField("credentialId", acd.getCredentialId().getHex());
+                        gen.writeStringField("publicKey", acd.getCredentialPublicKey().getHex());
+                        gen.writeEndObject();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+        gen.writeObjectField("extensions", value.getExtensions());
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.contrib.webauthn.internal.WebAuthnResourceReference;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+import org.xwiki.contrib.webauthn.internal.util.Either;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.internal.util.JacksonCodecs;
+
+/**
+ * Base class of the JSON endpoints of the WebAuthn ceremonies.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractWebAuthnEndpoint implements WebAuthnEndpoint
+{
+    protected static final String ACTION_START = "start";
+
+    protected static final String ACTION_FINISH = "finish";
+
+    private static final String CONTENTTYPE_JSON = "application/json";
+
+    /**
+     * The maximum size of a ceremony request body, in bytes. Real ceremonies are a few kilobytes.
+     */
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+
+    protected final ObjectMapper jsonMapper = JacksonCodecs.json();
+
+    @Inject
+    protected WebAuthnConfiguration configuration;
+
+    @Inject
+    protected WebAuthnMetrics metrics;
+
+    /**
+     * Thread safe and reusable, unlike a new writer for each response.
+     */
+    private final ObjectWriter jsonWriter = this.jsonMapper.writer();
+
+    /**
+     * @param reference the reference of the requested resource
+     * @return the ceremony step requested (the segment following the endpoint name)
+     */
+    protected String getAction(WebAuthnResourceReference reference)
+    {
+        return reference.getPathSegments().isEmpty() ? "" : reference.getPathSegments().get(0);
+    }
+
+    /**
+     * The ceremony steps modify the server state so they only accept POST requests.
+     *
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @return true if the request can be handled
+     * @throws IOException when failing to write the response
+     */
+    protected boolean checkPost(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if (!"POST".equals(request.getMethod())) {
+            response.setHeader("Allow", "POST");
+            writeError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Only POST requests are accepted.", response);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse the JSON body of the request straight from the request stream.
+     *
+     * @param <T> the type of the body
+     * @param request the HTTP request
+     * @param reader the reader of the expected body type
+     * @return the body of the request
+     * @throws IOException when the body is too big or cannot be parsed
+     */
+    protected <T> T readBody(HttpServletRequest request, ObjectReader reader) throws IOException
+    {
+        if (request.getContentLengthLong() > MAX_BODY_SIZE) {
+            throw new IOException("Request body too large");
+        }
+
+        // The content length might be missing (chunked requests), a truncated body won't parse
+        try (InputStream stream = new BoundedInputStream(request.getInputStream(), MAX_BODY_SIZE)) {
+            return reader.readValue(stream);
+        }
+    }
+
+    /**
+     * Write the result of a ceremony step: the value as JSON if it succeeded, the error messages otherwise.
+     *
+     * @param result the result of the ceremony step
+     * @param response the HTTP response
+     * @throws IOException when failing to write the response
+     */
+    protected void writeResult(Either<List<String>, ?> result, HttpServletResponse response) throws IOException
+    {
+        writeResult(result, Function.identity(), response);
+    }
+
+    /**
+     * Write the result of a ceremony step: the compact value (or the complete one when verbose responses are
+     * enabled) as JSON if it succeeded, the error messages otherwise.
+     *
+     * @param <R> the type of the result
+     * @param result the result of the ceremony step
+     * @param compact the compact version of the result, used unless verbose responses are enabled
+     * @param response the HTTP response
+     * @throws IOException when failing to write the response
+     */
+    protected <R> void writeResult(Either<List<String>, R> result, Function<R, ?> compact,
+        HttpServletResponse response) throws IOException
+    {
+        if (result.isRight()) {
+            R value = result.right().get();
+            writeJSON(HttpServletResponse.SC_OK,
+                this.configuration.getSnapshot().isVerboseResponses() ? value : compact.apply(value), response);
+        } else {
+            writeErrors(HttpServletResponse.SC_BAD_REQUEST, result.left().get(), response);
+        }
+    }
+
+    /**
+     * @param status the HTTP status
+     * @param message the error message
+     * @param response the HTTP response
+     * @throws IOException when failing to write the response
+     */
+    protected void writeError(int status, String message, HttpServletResponse response) throws IOException
+    {
+        writeErrors(status, Collections.singletonList(message), response);
+    }
+
+    private void writeErrors(int status, List<String> messages, HttpServletResponse response) throws IOException
+    {
+        ObjectNode errors = this.jsonMapper.createObjectNode();
+        errors.put("success", false);
+        errors.set("messages", this.jsonMapper.valueToTree(messages));
+
+        writeJSON(status, errors, response);
+    }
+
+    private void writeJSON(int status, Object value, HttpServletResponse response) throws IOException
+    {
+        response.setStatus(status);
+        response.setContentType(CONTENTTYPE_JSON);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        this.jsonWriter.writeValue(response.getOutputStream(), value);
+    }
+}
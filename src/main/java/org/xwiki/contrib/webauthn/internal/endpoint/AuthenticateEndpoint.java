@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.endpoint;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnAuthenticator;
+import org.xwiki.contrib.webauthn.internal.WebAuthnResourceReference;
+import org.xwiki.contrib.webauthn.internal.data.AssertionResponse;
+import org.xwiki.contrib.webauthn.internal.data.CompactCeremonyResult;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Authentication with a WebAuthn credential: {@code webauthn/authenticate/start} and
+ * {@code webauthn/authenticate/finish}.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(AuthenticateEndpoint.HINT)
+@Singleton
+public class AuthenticateEndpoint extends AbstractWebAuthnEndpoint
+{
+    /**
+     * The endpoint name.
+     */
+    public static final String HINT = "authenticate";
+
+    @Inject
+    private WebAuthnAuthenticator authenticator;
+
+    private final ObjectReader responseReader = this.jsonMapper.readerFor(AssertionResponse.class);
+
+    @Override
+    public ContextLevel getContextLevel()
+    {
+        return ContextLevel.LIGHT;
+    }
+
+    @Override
+    public void handle(WebAuthnResourceReference reference, HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        if (!checkPost(request, response)) {
+            return;
+        }
+
+        switch (getAction(reference)) {
+            case ACTION_START:
+                writeResult(this.authenticator.startAuthentication(
+                    Optional.ofNullable(StringUtils.trimToNull(request.getParameter("username")))), response);
+                break;
+            case ACTION_FINISH:
+                finish(request, response);
+                break;
+            default:
+                writeError(HttpServletResponse.SC_NOT_FOUND, "Unknown authentication step.", response);
+        }
+    }
+
+    private void finish(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        AssertionResponse assertionResponse;
+        long start = this.metrics.start();
+        try {
+            assertionResponse = readBody(request, this.responseReader);
+            this.metrics.stop("authentication.decode", start);
+        } catch (IOException e) {
+            this.metrics.increment("authentication.finish.failure.decode");
+            writeError(HttpServletResponse.SC_BAD_REQUEST, "Failed to decode response object.", response);
+
+            return;
+        }
+
+        writeResult(this.authenticator.finishAuthentication(assertionResponse),
+            result -> new CompactCeremonyResult(result.getUsername(), result.getSessionToken()), response);
+    }
+}
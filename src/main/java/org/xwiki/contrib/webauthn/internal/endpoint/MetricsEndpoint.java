@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.endpoint;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnResourceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * The WebAuthn metrics in the Prometheus text format: {@code webauthn/metrics}. Disabled unless
+ * {@value org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration#PROP_METRICS_PROMETHEUS} is enabled. The metrics
+ * cover the whole farm, so they are only served to the administrators of the main wiki or to the clients sending the
+ * {@value org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration#PROP_METRICS_TOKEN} as a bearer token.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(MetricsEndpoint.HINT)
+@Singleton
+public class MetricsEndpoint extends AbstractWebAuthnEndpoint
+{
+    /**
+     * The endpoint name.
+     */
+    public static final String HINT = "metrics";
+
+    private static final String PREFIX = "webauthn_";
+
+    private static final String BEARER = "Bearer ";
+
+    @Inject
+    private AuthorizationManager authorization;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Override
+    public ContextLevel getContextLevel()
+    {
+        return ContextLevel.AUTHENTICATED;
+    }
+
+    @Override
+    public void handle(WebAuthnResourceReference reference, HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        if (!this.configuration.isMetricsPrometheus()) {
+            writeError(HttpServletResponse.SC_NOT_FOUND, "The metrics are disabled.", response);
+
+            return;
+        }
+
+        if (!"GET".equals(request.getMethod())) {
+            response.setHeader("Allow", "GET");
+            writeError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Only GET requests are accepted.", response);
+
+            return;
+        }
+
+        if (!isAllowed(request)) {
+            response.setHeader("WWW-Authenticate", "Bearer");
+            writeError(HttpServletResponse.SC_UNAUTHORIZED, "You are not allowed to read the metrics.", response);
+
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+
+        PrintWriter writer = response.getWriter();
+        write(this.metrics.getCounters(), "counter", writer);
+        write(this.metrics.getGauges(), "gauge", writer);
+        writer.flush();
+    }
+
+    private boolean isAllowed(HttpServletRequest request)
+    {
+        String token = this.configuration.getMetricsToken();
+        String authorizationHeader = request.getHeader("Authorization");
+        if (StringUtils.isNotEmpty(token) && StringUtils.startsWith(authorizationHeader, BEARER)) {
+            return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                authorizationHeader.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+        }
+
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        return xcontext.getUserReference() != null && this.authorization.hasAccess(Right.ADMIN,
+            xcontext.getUserReference(), new WikiReference(xcontext.getMainXWiki()));
+    }
+
+    private void write(Map<String, Number> values, String type, PrintWriter writer)
+    {
+        for (Map.Entry<String, Number> value : values.entrySet()) {
+            String name = PREFIX + value.getKey().replaceAll("[^a-zA-Z0-9_]", "_");
+
+            writer.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            writer.append(name).append(' ').append(String.valueOf(value.getValue())).append('\n');
+        }
+    }
+}
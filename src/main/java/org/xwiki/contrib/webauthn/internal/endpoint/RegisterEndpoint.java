@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.endpoint;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnRegistrationManager;
+import org.xwiki.contrib.webauthn.internal.WebAuthnResourceReference;
+import org.xwiki.contrib.webauthn.internal.data.CompactCeremonyResult;
+import org.xwiki.contrib.webauthn.internal.data.RegistrationRequest;
+import org.xwiki.contrib.webauthn.internal.data.RegistrationResponse;
+import org.xwiki.contrib.webauthn.internal.util.Either;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+/**
+ * Registration of a new WebAuthn credential for the current user: {@code webauthn/register/start} and
+ * {@code webauthn/register/finish}.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(RegisterEndpoint.HINT)
+@Singleton
+public class RegisterEndpoint extends AbstractWebAuthnEndpoint
+{
+    /**
+     * The endpoint name.
+     */
+    public static final String HINT = "register";
+
+    @Inject
+    private WebAuthnRegistrationManager registrations;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    private final ObjectReader responseReader = this.jsonMapper.readerFor(RegistrationResponse.class);
+
+    @Override
+    public ContextLevel getContextLevel()
+    {
+        return ContextLevel.AUTHENTICATED;
+    }
+
+    @Override
+    public void handle(WebAuthnResourceReference reference, HttpServletRequest request,
+        HttpServletResponse response) throws Exception
+    {
+        if (!checkPost(request, response)) {
+            return;
+        }
+
+        XWikiContext xcontext = this.xcontextProvider.get();
+        DocumentReference userReference = xcontext.getUserReference();
+        if (userReference == null) {
+            writeError(HttpServletResponse.SC_UNAUTHORIZED,
+                "You need to be logged in to register a WebAuthn credential.", response);
+
+            return;
+        }
+
+        switch (getAction(reference)) {
+            case ACTION_START:
+                start(userReference, request, response, xcontext);
+                break;
+            case ACTION_FINISH:
+                finish(request, response);
+                break;
+            default:
+                writeError(HttpServletResponse.SC_NOT_FOUND, "Unknown registration step.", response);
+        }
+    }
+
+    private void finish(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        RegistrationResponse registrationResponse;
+        long start = this.metrics.start();
+        try {
+            registrationResponse = readBody(request, this.responseReader);
+            this.metrics.stop("registration.decode", start);
+        } catch (IOException e) {
+            this.metrics.increment("registration.finish.failure.decode");
+            writeError(HttpServletResponse.SC_BAD_REQUEST, "Failed to decode response object.", response);
+
+            return;
+        }
+
+        writeResult(this.registrations.finishRegistration(registrationResponse),
+            result -> new CompactCeremonyResult(result.getUsername(), result.getSessionToken()), response);
+    }
+
+    private void start(DocumentReference userReference, HttpServletRequest request, HttpServletResponse response,
+        XWikiContext xcontext) throws Exception
+    {
+        Optional<ByteArray> sessionToken;
+        try {
+            String token = request.getParameter("sessionToken");
+            sessionToken =
+                StringUtils.isEmpty(token) ? Optional.empty() : Optional.of(ByteArray.fromBase64Url(token));
+        } catch (Base64UrlException e) {
+            writeError(HttpServletResponse.SC_BAD_REQUEST, "Invalid session token.", response);
+
+            return;
+        }
+
+        Either<String, RegistrationRequest> result = this.registrations.startRegistration(userReference.getName(),
+            Optional.of(xcontext.getWiki().getPlainUserName(userReference, xcontext)),
+            Optional.ofNullable(StringUtils.trimToNull(request.getParameter("credentialNickname"))),
+            BooleanUtils.toBoolean(request.getParameter("requireResidentKey")), sessionToken);
+
+        writeResult(result.isRight() ? Either.<List<String>, RegistrationRequest>right(result.right().get())
+            : Either.<List<String>, RegistrationRequest>left(Collections.singletonList(result.left().get())),
+            response);
+    }
+}
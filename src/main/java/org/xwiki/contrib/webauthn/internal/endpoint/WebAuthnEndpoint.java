@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.endpoint;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.contrib.webauthn.internal.WebAuthnResourceReference;
+
+/**
+ * An endpoint of the {@code webauthn} resource type. The hint of the component is the name of the endpoint, i.e.
+ * the first segment of the path.
+ *
+ * @version $Id$
+ */
+@Role
+public interface WebAuthnEndpoint
+{
+    /**
+     * The XWiki context an endpoint needs to be initialized before handling a request.
+     *
+     * @version $Id$
+     */
+    enum ContextLevel
+    {
+        /**
+         * The wiki and the storage are available, no user, URL factory or localization.
+         */
+        LIGHT,
+
+        /**
+         * Same as {@link #LIGHT} with the authenticated user.
+         */
+        AUTHENTICATED,
+
+        /**
+         * The complete XWiki context, as for a page rendering.
+         */
+        FULL
+    }
+
+    /**
+     * @return the XWiki context this endpoint needs
+     */
+    default ContextLevel getContextLevel()
+    {
+        return ContextLevel.FULL;
+    }
+
+    /**
+     * @param reference the reference of the requested resource
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws Exception when failing to handle the request
+     */
+    void handle(WebAuthnResourceReference reference, HttpServletRequest request, HttpServletResponse response)
+        throws Exception;
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+import java.io.Serializable;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * Base class for WebAuthn credentials related events.
+ * <p>
+ * These events are serializable so that they are also sent to the other members of a cluster, which use them to
+ * keep their cached credentials up to date.
+ * </p>
+ *
+ * @version $Id$
+ */
+public abstract class AbstractWebAuthnCredentialEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private String wiki;
+
+    private String username;
+
+    // Match all the users
+    public AbstractWebAuthnCredentialEvent()
+    {
+    }
+
+    /**
+     * @param wiki the identifier of the wiki of the user
+     * @param username the name of the user for which the event has been sent
+     */
+    public AbstractWebAuthnCredentialEvent(String wiki, String username)
+    {
+        this.wiki = wiki;
+        this.username = username;
+    }
+
+    /**
+     * @return the identifier of the wiki of the user
+     */
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
+    /**
+     * @return the name of the user for which the event has been sent
+     */
+    public String getUsername()
+    {
+        return this.username;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        if (otherEvent instanceof AbstractWebAuthnCredentialEvent) {
+            AbstractWebAuthnCredentialEvent other = (AbstractWebAuthnCredentialEvent) otherEvent;
+
+            return (getWiki() == null || getWiki().equals(other.getWiki()))
+                && (getUsername() == null || getUsername().equals(other.getUsername()));
+        }
+
+        return false;
+    }
+}
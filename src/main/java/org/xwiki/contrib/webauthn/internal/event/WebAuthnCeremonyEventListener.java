@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.CeremonySealer;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+/**
+ * Remember the sealed WebAuthn ceremonies finished by the other members of the cluster, so that they cannot be
+ * replayed on this one.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(WebAuthnCeremonyEventListener.NAME)
+@Singleton
+public class WebAuthnCeremonyEventListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.webauthn.internal.event.WebAuthnCeremonyEventListener";
+
+    @Inject
+    private RemoteObservationManagerContext remoteContext;
+
+    @Inject
+    private Provider<CeremonySealer> sealerProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Default constructor.
+     */
+    public WebAuthnCeremonyEventListener()
+    {
+        super(NAME, new WebAuthnCeremonyConsumedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Local ceremonies are already marked as consumed
+        if (!this.remoteContext.isRemoteState()) {
+            return;
+        }
+
+        try {
+            this.sealerProvider.get().markConsumed(ByteArray.fromBase64Url((String) source));
+        } catch (Base64UrlException e) {
+            this.logger.warn("Ignoring invalid consumed WebAuthn ceremony [{}]", source);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Drop the WebAuthn configuration snapshot of a wiki when its preferences are modified. The document events of the
+ * other members of the cluster are received too.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(WebAuthnConfigurationListener.NAME)
+@Singleton
+public class WebAuthnConfigurationListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.webauthn.internal.event.WebAuthnConfigurationListener";
+
+    private static final String WIKI_PREFERENCES = "XWikiPreferences";
+
+    @Inject
+    private Provider<WebAuthnConfiguration> configurationProvider;
+
+    /**
+     * Default constructor.
+     */
+    public WebAuthnConfigurationListener()
+    {
+        super(NAME, new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DocumentReference reference = ((XWikiDocument) source).getDocumentReference();
+
+        if (WIKI_PREFERENCES.equals(reference.getName())
+            && XWiki.SYSTEM_SPACE.equals(reference.getLastSpaceReference().getName())) {
+            this.configurationProvider.get().invalidate(reference.getWikiReference().getName());
+        }
+    }
+}
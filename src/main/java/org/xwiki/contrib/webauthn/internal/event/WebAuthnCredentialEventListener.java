@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.RegistrationStorage;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+/**
+ * Keep the cached WebAuthn credentials in sync with the modifications made by the other members of the cluster.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(WebAuthnCredentialEventListener.NAME)
+@Singleton
+public class WebAuthnCredentialEventListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.webauthn.internal.event.WebAuthnCredentialEventListener";
+
+    @Inject
+    private RemoteObservationManagerContext remoteContext;
+
+    @Inject
+    private Provider<RegistrationStorage> storageProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Default constructor.
+     */
+    public WebAuthnCredentialEventListener()
+    {
+        super(NAME, new WebAuthnCredentialAddedEvent(), new WebAuthnCredentialRemovedEvent(),
+            new WebAuthnSignatureCountUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Local modifications are already applied to the local cache
+        if (!this.remoteContext.isRemoteState()) {
+            return;
+        }
+
+        String wiki = ((AbstractWebAuthnCredentialEvent) event).getWiki();
+        String username = ((AbstractWebAuthnCredentialEvent) event).getUsername();
+
+        if (event instanceof WebAuthnSignatureCountUpdatedEvent) {
+            for (Map.Entry<String, Long> entry : ((Map<String, Long>) data).entrySet()) {
+                try {
+                    this.storageProvider.get().setSignatureCount(wiki, username,
+                        ByteArray.fromBase64Url(entry.getKey()), entry.getValue());
+                } catch (Base64UrlException e) {
+                    this.logger.warn("Ignoring signature count update of invalid credential [{}]", entry.getKey());
+                }
+            }
+        } else {
+            // The up to date registrations will be loaded from the store on the next access
+            this.storageProvider.get().invalidate(wiki, username);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+/**
+ * Event sent when WebAuthn credentials have been removed from a user.
+ * <p>
+ * The event also send the following parameters:
+ * </p>
+ * <ul>
+ * <li>source: the base64url encoded identifier of the removed credential, or null when all the credentials of the
+ * user have been removed</li>
+ * <li>data: null</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class WebAuthnCredentialRemovedEvent extends AbstractWebAuthnCredentialEvent
+{
+    private static final long serialVersionUID = 1L;
+
+    // Matches all users
+    public WebAuthnCredentialRemovedEvent()
+    {
+    }
+
+    /**
+     * @param wiki the identifier of the wiki of the user
+     * @param username the name of the user for which the event has been sent
+     */
+    public WebAuthnCredentialRemovedEvent(String wiki, String username)
+    {
+        super(wiki, username);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.event;
+
+/**
+ * Event sent when the signature counts of the WebAuthn credentials of a user, moved forward by successful assertions,
+ * have been saved. The updates are sent in batches, when they are written to the store.
+ * <p>
+ * The event also send the following parameters:
+ * </p>
+ * <ul>
+ * <li>source: null</li>
+ * <li>data: the new signature counts, as a {@code Map<String, Long>} keyed by base64url encoded credential
+ * identifier</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class WebAuthnSignatureCountUpdatedEvent extends AbstractWebAuthnCredentialEvent
+{
+    private static final long serialVersionUID = 1L;
+
+    // Matches all users
+    public WebAuthnSignatureCountUpdatedEvent()
+    {
+    }
+
+    /**
+     * @param wiki the identifier of the wiki of the user
+     * @param username the name of the user for which the event has been sent
+     */
+    public WebAuthnSignatureCountUpdatedEvent(String wiki, String username)
+    {
+        super(wiki, username);
+    }
+}
@@ -39,7 +39,7 @@ public class WebAuthnUserEventData
 
     ByteArray publicKeyCose;
 
-    int signatureCount;
+    long signatureCount;
 
     /**
      * Instantiates a new WebAuthn user event related data.
@@ -50,7 +50,7 @@ public class WebAuthnUserEventData
      * @param signatureCount the signature count
      */
     public WebAuthnUserEventData(RegisteredCredential credential, UserIdentity userIdentity,
-        ByteArray publicKeyCose, int signatureCount)
+        ByteArray publicKeyCose, long signatureCount)
     {
         this.credential = credential;
         this.userIdentity = userIdentity;
@@ -93,7 +93,7 @@ public class WebAuthnUserEventData
      *
      * @return the signature count
      */
-    public int getSignatureCount()
+    public long getSignatureCount()
     {
         return signatureCount;
     }
@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.google.common.cache.Cache;
+
+/**
+ * The metrics of the WebAuthn ceremonies: timers, counters and gauges, exposed as the attributes of the
+ * {@value #OBJECT_NAME} MBean.
+ * <p>
+ * Recording a metric only updates striped counters so it's cheap enough to be done on every ceremony.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = WebAuthnMetrics.class)
+@Singleton
+public class WebAuthnMetrics implements Initializable, Disposable
+{
+    /**
+     * The name of the MBean exposing the metrics.
+     */
+    public static final String OBJECT_NAME = "org.xwiki.contrib.webauthn:type=Metrics";
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Supplier<Number>> functionCounters = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    private static class Timer
+    {
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        void record(long nanos)
+        {
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulate(nanos);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // Left behind by a previous deployment of the extension
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new WebAuthnMetricsMBean(this), name);
+            this.objectName = name;
+        } catch (JMException e) {
+            this.logger.warn("Failed to register the WebAuthn metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (JMException e) {
+                this.logger.warn("Failed to unregister the WebAuthn metrics MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the start time to pass to {@link #stop(String, long)}
+     */
+    public long start()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the duration of an operation.
+     *
+     * @param timer the name of the timer
+     * @param start the value returned by {@link #start()} when the operation started
+     */
+    public void stop(String timer, long start)
+    {
+        this.timers.computeIfAbsent(timer, name -> new Timer()).record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param counter the name of the counter to increment
+     */
+    public void increment(String counter)
+    {
+        this.counters.computeIfAbsent(counter, name -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param gauge the name of the gauge
+     * @param value provides the current value of the gauge
+     */
+    public void gauge(String gauge, Supplier<Number> value)
+    {
+        this.gauges.put(gauge, value);
+    }
+
+    /**
+     * @param counter the name of the counter
+     * @param value provides the current value of the counter, which must only increase
+     */
+    public void counter(String counter, Supplier<Number> value)
+    {
+        this.functionCounters.put(counter, value);
+    }
+
+    /**
+     * Expose the size and hit rate (gauges) and eviction count (counter) of a cache. The cache must record its
+     * statistics.
+     *
+     * @param cache the name of the cache
+     * @param value the cache
+     */
+    public void cacheMetrics(String cache, Cache<?, ?> value)
+    {
+        gauge(cache + ".size", value::size);
+        gauge(cache + ".hitRate", () -> value.stats().hitRate());
+        counter(cache + ".evictions", () -> value.stats().evictionCount());
+    }
+
+    /**
+     * @return the current value of the metrics which only increase: the counters, plus the number of operations
+     *         ({@code <timer>.count}) and their total duration in seconds ({@code <timer>.seconds}) for each timer
+     */
+    public SortedMap<String, Number> getCounters()
+    {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : this.counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        putValues(this.functionCounters, values);
+        for (Map.Entry<String, Timer> timer : this.timers.entrySet()) {
+            values.put(timer.getKey() + ".count", timer.getValue().count.sum());
+            values.put(timer.getKey() + ".seconds", timer.getValue().totalNanos.sum() / NANOS_PER_SECOND);
+        }
+
+        return values;
+    }
+
+    /**
+     * @return the current value of the gauges, plus the longest duration in seconds ({@code <timer>.maxSeconds}) of
+     *         each timer
+     */
+    public SortedMap<String, Number> getGauges()
+    {
+        SortedMap<String, Number> values = new TreeMap<>();
+        putValues(this.gauges, values);
+        for (Map.Entry<String, Timer> timer : this.timers.entrySet()) {
+            values.put(timer.getKey() + ".maxSeconds", timer.getValue().maxNanos.get() / NANOS_PER_SECOND);
+        }
+
+        return values;
+    }
+
+    private void putValues(Map<String, Supplier<Number>> suppliers, Map<String, Number> values)
+    {
+        for (Map.Entry<String, Supplier<Number>> supplier : suppliers.entrySet()) {
+            try {
+                values.put(supplier.getKey(), supplier.getValue().get());
+            } catch (Exception e) {
+                this.logger.debug("Failed to get the value of metric [{}]", supplier.getKey(), e);
+            }
+        }
+    }
+}
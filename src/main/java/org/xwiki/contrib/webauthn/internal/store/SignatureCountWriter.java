@@ -0,0 +1,280 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.store;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.contrib.webauthn.internal.event.WebAuthnSignatureCountUpdatedEvent;
+import org.xwiki.observation.ObservationManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.webauthn.data.ByteArray;
+
+import lombok.Value;
+
+/**
+ * Write-behind queue for the signature counts of the WebAuthn credentials.
+ * <p>
+ * Saving the user profile on every login would create a new document revision each time. Instead the updates are
+ * queued, the updates of the same credential are merged (only the highest count is kept) and they are flushed
+ * regularly with a single save per user profile. The queue is bounded: when it's full the caller saves the profile
+ * itself. An update stays in the queue until it's saved, so that a profile reloaded during a flush never misses it,
+ * and the updates which fail to be saved are simply kept (with the highest count) for the next flush. The saved counts
+ * of each user are sent to the other members of the cluster with a single {@link WebAuthnSignatureCountUpdatedEvent}.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = SignatureCountWriter.class)
+@Singleton
+public class SignatureCountWriter implements Initializable, Disposable
+{
+    /**
+     * The maximum number of credentials waiting in the queue.
+     */
+    private static final int CAPACITY = 10000;
+
+    @Inject
+    private WebAuthnUserStore store;
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private ObservationManager observation;
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<PendingCredential, Long> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * The delay, in seconds, between two flushes of the queue.
+     */
+    private long flushDelay;
+
+    @Value
+    private static class PendingCredential
+    {
+        String wiki;
+
+        String username;
+
+        ByteArray credentialId;
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.flushDelay = Math.max(1, this.configuration.getSignatureCountFlushDelay());
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("WebAuthn signature count writer").daemon(true).build());
+        this.executor.scheduleWithFixedDelay(this::flushInContext, this.flushDelay, this.flushDelay,
+            TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(this.flushDelay, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Don't lose the pending updates
+        flushInContext();
+    }
+
+    /**
+     * Queue a new signature count for a credential of a user of the current wiki.
+     *
+     * @param username the name of the standard XWiki user
+     * @param credentialId the identifier of the WebAuthn credential
+     * @param signatureCount the new signature count
+     */
+    public void update(String username, ByteArray credentialId, long signatureCount)
+    {
+        PendingCredential credential =
+            new PendingCredential(this.xcontextProvider.get().getWikiId(), username, credentialId);
+
+        if (this.pending.size() >= CAPACITY && !this.pending.containsKey(credential)) {
+            // Back pressure: the queue is full, save the profile right away (including any pending update of the
+            // same user)
+            this.logger.debug("Signature count queue is full, saving [{}] synchronously", username);
+
+            Map<ByteArray, Long> signatureCounts = getPending(credential.getWiki(), username);
+            signatureCounts.merge(credentialId, signatureCount, Math::max);
+
+            flush(credential.getWiki(), username, signatureCounts);
+        } else {
+            this.pending.merge(credential, signatureCount, Math::max);
+        }
+    }
+
+    /**
+     * @param username the name of the standard XWiki user of the current wiki
+     * @param credentialId the identifier of the WebAuthn credential
+     * @return the signature count waiting to be saved, if any
+     */
+    public OptionalLong getPendingSignatureCount(String username, ByteArray credentialId)
+    {
+        Long signatureCount =
+            this.pending.get(new PendingCredential(this.xcontextProvider.get().getWikiId(), username, credentialId));
+
+        return signatureCount != null ? OptionalLong.of(signatureCount) : OptionalLong.empty();
+    }
+
+    /**
+     * Save all the pending signature counts. Expect an initialized execution context.
+     */
+    public void flush()
+    {
+        Map<String, Map<String, Map<ByteArray, Long>>> byWiki = new HashMap<>();
+        for (Map.Entry<PendingCredential, Long> entry : this.pending.entrySet()) {
+            PendingCredential credential = entry.getKey();
+
+            byWiki.computeIfAbsent(credential.getWiki(), k -> new HashMap<>())
+                .computeIfAbsent(credential.getUsername(), k -> new HashMap<>())
+                .put(credential.getCredentialId(), entry.getValue());
+        }
+
+        for (Map.Entry<String, Map<String, Map<ByteArray, Long>>> wiki : byWiki.entrySet()) {
+            for (Map.Entry<String, Map<ByteArray, Long>> user : wiki.getValue().entrySet()) {
+                flush(wiki.getKey(), user.getKey(), user.getValue());
+            }
+        }
+    }
+
+    private Map<ByteArray, Long> getPending(String wiki, String username)
+    {
+        Map<ByteArray, Long> signatureCounts = new HashMap<>();
+        for (Map.Entry<PendingCredential, Long> entry : this.pending.entrySet()) {
+            PendingCredential credential = entry.getKey();
+            if (credential.getWiki().equals(wiki) && credential.getUsername().equals(username)) {
+                signatureCounts.put(credential.getCredentialId(), entry.getValue());
+            }
+        }
+
+        return signatureCounts;
+    }
+
+    private void flush(String wiki, String username, Map<ByteArray, Long> signatureCounts)
+    {
+        if (signatureCounts.isEmpty()) {
+            return;
+        }
+
+        XWikiContext xcontext = this.xcontextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+        try {
+            xcontext.setWikiId(wiki);
+
+            this.store.updateSignatureCounts(username, signatureCounts);
+
+            // Only forget the saved values, a concurrent update will be saved by the next flush
+            for (Map.Entry<ByteArray, Long> entry : signatureCounts.entrySet()) {
+                this.pending.remove(new PendingCredential(wiki, username, entry.getKey()), entry.getValue());
+            }
+
+            notifySaved(wiki, username, signatureCounts);
+        } catch (Exception e) {
+            this.logger.error("Failed to save the signature counts of user [{}] in wiki [{}], retrying on the next"
+                + " flush", username, wiki, e);
+
+            // Keep the highest count: the queued value might be older (saved synchronously) or more recent
+            for (Map.Entry<ByteArray, Long> entry : signatureCounts.entrySet()) {
+                this.pending.merge(new PendingCredential(wiki, username, entry.getKey()), entry.getValue(),
+                    Math::max);
+            }
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+    }
+
+    private void notifySaved(String wiki, String username, Map<ByteArray, Long> signatureCounts)
+    {
+        Map<String, Long> counts = new LinkedHashMap<>(signatureCounts.size());
+        for (Map.Entry<ByteArray, Long> entry : signatureCounts.entrySet()) {
+            counts.put(entry.getKey().getBase64Url(), entry.getValue());
+        }
+
+        this.observation.notify(new WebAuthnSignatureCountUpdatedEvent(wiki, username), null, counts);
+    }
+
+    private void flushInContext()
+    {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+        } catch (ExecutionContextException e) {
+            this.logger.error("Failed to initialize the execution context to save the signature counts", e);
+
+            return;
+        }
+
+        try {
+            flush();
+        } catch (Exception e) {
+            // Never let an exception kill the scheduled task
+            this.logger.error("Failed to save the signature counts", e);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+}
@@ -37,6 +37,7 @@ import com.xpn.xwiki.objects.classes.BaseClass;
 @Singleton
 public class WebAuthnCredentialClassDocumentInitializer extends AbstractMandatoryClassInitializer
 {
+    // Changing the type would require migrating the existing objects, the signature count is clamped instead
     private static final String INTEGER = "integer";
 
     /**
@@ -54,5 +55,7 @@ public class WebAuthnCredentialClassDocumentInitializer extends AbstractMandator
         xclass.addTextField(WebAuthnUser.FIELD_USERID, "User ID", 60);
         xclass.addTextAreaField(WebAuthnUser.FIELD_PUBLICKEYCOSE, "PublicKeyCOSE", 60, 10);
         xclass.addNumberField(WebAuthnUser.FIELD_SIGNATURECOUNT, "Signature Count", 100, INTEGER);
+        xclass.addTextField(WebAuthnUser.FIELD_CREDENTIALNICKNAME, "Credential Nickname", 60);
+        xclass.addDateField(WebAuthnUser.FIELD_REGISTRATIONTIME, "Registration Time");
     }
 }
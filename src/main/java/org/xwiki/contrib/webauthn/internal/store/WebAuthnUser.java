@@ -20,6 +20,7 @@
 package org.xwiki.contrib.webauthn.internal.store;
 
 import java.util.Arrays;
+import java.util.Date;
 
 import org.xwiki.model.reference.LocalDocumentReference;
 
@@ -67,6 +68,16 @@ public class WebAuthnUser
      */
     public static final String FIELD_SIGNATURECOUNT = "signatureCount";
 
+    /**
+     * The name of the property containing the nickname given by the user to the WebAuthn credential.
+     */
+    public static final String FIELD_CREDENTIALNICKNAME = "credentialNickname";
+
+    /**
+     * The name of the property containing the date at which the WebAuthn credential was registered.
+     */
+    public static final String FIELD_REGISTRATIONTIME = "registrationTime";
+
     private final BaseObject xobject;
 
     /**
@@ -134,10 +145,43 @@ public class WebAuthnUser
     }
 
     /**
-     * @param signatureCount the WebAuthn user's signature count.
+     * @param signatureCount the WebAuthn user's signature count, an unsigned 32 bits integer. It's stored in an
+     *            integer property, so counts above {@link Integer#MAX_VALUE} are stored as {@link Integer#MAX_VALUE}.
+     */
+    public void setSignatureCount(long signatureCount)
+    {
+        this.xobject.setIntValue(FIELD_SIGNATURECOUNT, (int) Math.min(signatureCount, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the nickname of the WebAuthn credential.
+     */
+    public String getCredentialNickname()
+    {
+        return this.xobject.getStringValue(FIELD_CREDENTIALNICKNAME);
+    }
+
+    /**
+     * @param credentialNickname the nickname of the WebAuthn credential.
+     */
+    public void setCredentialNickname(String credentialNickname)
+    {
+        this.xobject.setStringValue(FIELD_CREDENTIALNICKNAME, credentialNickname);
+    }
+
+    /**
+     * @return the date at which the WebAuthn credential was registered.
+     */
+    public Date getRegistrationTime()
+    {
+        return this.xobject.getDateValue(FIELD_REGISTRATIONTIME);
+    }
+
+    /**
+     * @param registrationTime the date at which the WebAuthn credential was registered.
      */
-    public void setSignatureCount(String signatureCount)
+    public void setRegistrationTime(Date registrationTime)
     {
-        this.xobject.setIntValue(FIELD_SIGNATURECOUNT, Integer.parseInt(signatureCount));
+        this.xobject.setDateValue(FIELD_REGISTRATIONTIME, registrationTime);
     }
-}
\ No newline at end of file
+}
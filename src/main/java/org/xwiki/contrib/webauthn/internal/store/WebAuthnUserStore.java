@@ -19,7 +19,13 @@
  */
 package org.xwiki.contrib.webauthn.internal.store;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,16 +33,28 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.webauthn.internal.data.CredentialRegistration;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.exception.Base64UrlException;
 
 /**
  * Helper to manage WebAuthn user profile's XClass and XObject.
@@ -47,6 +65,12 @@ import com.xpn.xwiki.doc.XWikiDocument;
 @Singleton
 public class WebAuthnUserStore
 {
+    private static final EntityReference USER_SPACE_REFERENCE =
+        new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE);
+
+    @Inject
+    private Logger logger;
+
     @Inject
     private QueryManager queries;
 
@@ -57,6 +81,9 @@ public class WebAuthnUserStore
     @Named("current")
     private DocumentReferenceResolver<String> resolver;
 
+    @Inject
+    private WebAuthnMetrics metrics;
+
     /**
      * Add or update WebAuthn metadata in the user profile
      *
@@ -67,13 +94,18 @@ public class WebAuthnUserStore
      * @param signatureCount the WebAuthn user's signature count.
      **/
     public boolean updateWebAuthnUser(XWikiDocument userDocument, String credentialId,
-        String userId, String publicKeyCose, int signatureCount)
+        String userId, String publicKeyCose, long signatureCount)
     {
         XWikiContext xcontext = this.xcontextProvider.get();
 
-        String sc = Integer.toString(signatureCount);
+        String sc = Long.toString(signatureCount);
 
-        WebAuthnUser user = new WebAuthnUser(userDocument.getXObject(WebAuthnUser.CLASS_REFERENCE, true, xcontext));
+        BaseObject xobject = getCredentialObject(userDocument, credentialId);
+        if (xobject == null) {
+            xobject = userDocument.getXObject(WebAuthnUser.CLASS_REFERENCE, true, xcontext);
+        }
+
+        WebAuthnUser user = new WebAuthnUser(xobject);
 
         boolean needUpdate = false;
 
@@ -94,7 +126,7 @@ public class WebAuthnUserStore
         }
 
         if (!StringUtils.equals(user.getSignatureCount(), sc)) {
-            user.setSignatureCount(sc);
+            user.setSignatureCount(signatureCount);
             needUpdate = true;
         }
 
@@ -105,36 +137,21 @@ public class WebAuthnUserStore
      * Search in the existing XWiki user if one already has WebAuthn credentials associated with them
      *
      * @param credentialId the WebAuthn user's credentialId.
-     * @param userId the WebAuthn user's userId.
-     * @param signatureCount the WebAuthn user's signature count.
      * @return the document of the user profile which already contains theses WebAuthn credentials
      * @throws XWikiException when failing the get the document
      * @throws QueryException when failing to search for the document
      */
-    public XWikiDocument searchDocument(String credentialId, String userId, String publicKeyCose,
-        int signatureCount) throws XWikiException, QueryException
+    public XWikiDocument searchDocument(String credentialId) throws XWikiException, QueryException
     {
-        Query query = this.queries.createQuery("from doc.object(" + WebAuthnUser.CLASS_FULLNAME
-            + ") as webauthn where webauthn.credentialId = :credentialId and webauthn.userId = :userId and "
-            + "webauthn.publicKeyCose = " + ":publicKeyCose and "
-            + "webauthn.signatureCount = :signatureCount", Query.XWQL);
-
-        query.bindValue("credentialId", credentialId);
-        query.bindValue("userId", userId);
-        query.bindValue("publicKeyCose", publicKeyCose);
-        query.bindValue("signatureCount", signatureCount);
-
-        List<String> documents = query.execute();
+        String document = searchCredentialDocument(credentialId);
 
-        if (documents.isEmpty()) {
+        if (document == null) {
             return null;
         }
 
-        // TODO: throw exception when there are several credentials for a single username ?
-
         XWikiContext xcontext = this.xcontextProvider.get();
 
-        DocumentReference userReference = this.resolver.resolve(documents.get(0));
+        DocumentReference userReference = this.resolver.resolve(document);
 
         XWikiDocument userDocument = xcontext.getWiki().getDocument(userReference, xcontext);
 
@@ -144,4 +161,269 @@ public class WebAuthnUserStore
 
         return userDocument;
     }
+
+    /**
+     * @param username the name of the standard XWiki user
+     * @return the reference of the user profile document
+     */
+    public DocumentReference getUserReference(String username)
+    {
+        return this.resolver.resolve(username, USER_SPACE_REFERENCE);
+    }
+
+    /**
+     * Load the WebAuthn credentials stored in the profile of a standard XWiki user.
+     *
+     * @param username the name of the standard XWiki user
+     * @return the WebAuthn credentials registered for the user
+     * @throws XWikiException when failing to get the user profile
+     */
+    public List<CredentialRegistration> getRegistrations(String username) throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        DocumentReference userReference = getUserReference(username);
+        XWikiDocument userDocument = xcontext.getWiki().getDocument(userReference, xcontext);
+
+        List<CredentialRegistration> registrations = new ArrayList<>();
+
+        if (!userDocument.isNew()) {
+            String displayName = xcontext.getWiki().getPlainUserName(userReference, xcontext);
+
+            for (BaseObject xobject : userDocument.getXObjects(WebAuthnUser.CLASS_REFERENCE)) {
+                if (xobject != null) {
+                    toRegistration(username, displayName, new WebAuthnUser(xobject)).ifPresent(registrations::add);
+                }
+            }
+        }
+
+        return registrations;
+    }
+
+    /**
+     * Search the standard XWiki user to which the given WebAuthn user handle was assigned.
+     *
+     * @param userHandle the WebAuthn user handle
+     * @return the name of the standard XWiki user
+     * @throws QueryException when failing to search for the user profile
+     */
+    public Optional<String> searchUsername(ByteArray userHandle) throws QueryException
+    {
+        Query query = this.queries.createQuery("from doc.object(" + WebAuthnUser.CLASS_FULLNAME
+            + ") as webauthn where webauthn.userId = :userId", Query.XWQL);
+
+        query.bindValue("userId", userHandle.getBase64Url());
+        query.setLimit(1);
+
+        List<String> documents = query.execute();
+
+        return documents.stream().findFirst().map(document -> this.resolver.resolve(document).getName());
+    }
+
+    /**
+     * Search the standard XWiki user to which the given WebAuthn credential was registered.
+     *
+     * @param credentialId the identifier of the WebAuthn credential
+     * @return the name of the standard XWiki user
+     * @throws QueryException when failing to search for the user profile
+     */
+    public Optional<String> searchCredentialUsername(ByteArray credentialId) throws QueryException
+    {
+        return Optional.ofNullable(searchCredentialDocument(credentialId.getBase64Url()))
+            .map(document -> this.resolver.resolve(document).getName());
+    }
+
+    /**
+     * Store a new WebAuthn credential in the profile of a standard XWiki user.
+     *
+     * @param userReference the reference of the profile of the standard XWiki user, in its own wiki
+     * @param registration the WebAuthn credential to store
+     * @return false if the user does not exist
+     * @throws XWikiException when failing to save the user profile
+     */
+    public boolean addRegistration(DocumentReference userReference, CredentialRegistration registration)
+        throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        XWikiDocument userDocument = xcontext.getWiki().getDocument(userReference, xcontext);
+        if (userDocument.isNew()) {
+            return false;
+        }
+
+        XWikiDocument modifiableDocument = userDocument.clone();
+
+        WebAuthnUser user = new WebAuthnUser(modifiableDocument.newXObject(WebAuthnUser.CLASS_REFERENCE, xcontext));
+        user.setCredentialId(registration.getCredential().getCredentialId().getBase64Url());
+        user.setUserId(registration.getUserIdentity().getId().getBase64Url());
+        user.setPublicKeyCose(registration.getCredential().getPublicKeyCose().getBase64Url());
+        user.setSignatureCount(registration.getSignatureCount());
+        user.setCredentialNickname(registration.getCredentialNickname().orElse(""));
+        user.setRegistrationTime(Date.from(registration.getRegistrationTime()));
+
+        save(modifiableDocument, "Added WebAuthn credential", xcontext);
+
+        return true;
+    }
+
+    /**
+     * Remove a WebAuthn credential from the profile of a standard XWiki user.
+     *
+     * @param username the name of the standard XWiki user
+     * @param credentialId the identifier of the WebAuthn credential to remove
+     * @return false if the credential could not be found
+     * @throws XWikiException when failing to save the user profile
+     */
+    public boolean removeRegistration(String username, ByteArray credentialId) throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        XWikiDocument modifiableDocument =
+            xcontext.getWiki().getDocument(getUserReference(username), xcontext).clone();
+
+        BaseObject xobject = getCredentialObject(modifiableDocument, credentialId);
+        if (xobject == null) {
+            return false;
+        }
+
+        modifiableDocument.removeXObject(xobject);
+
+        save(modifiableDocument, "Removed WebAuthn credential", xcontext);
+
+        return true;
+    }
+
+    /**
+     * Remove all WebAuthn credentials from the profile of a standard XWiki user.
+     *
+     * @param username the name of the standard XWiki user
+     * @throws XWikiException when failing to save the user profile
+     */
+    public void removeAllRegistrations(String username) throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        XWikiDocument userDocument = xcontext.getWiki().getDocument(getUserReference(username), xcontext);
+        if (!userDocument.getXObjects(WebAuthnUser.CLASS_REFERENCE).isEmpty()) {
+            XWikiDocument modifiableDocument = userDocument.clone();
+
+            modifiableDocument.removeXObjects(WebAuthnUser.CLASS_REFERENCE);
+
+            save(modifiableDocument, "Removed all WebAuthn credentials", xcontext);
+        }
+    }
+
+    /**
+     * Update the signature count of a WebAuthn credential stored in the profile of a standard XWiki user.
+     *
+     * @param username the name of the standard XWiki user
+     * @param credentialId the identifier of the WebAuthn credential
+     * @param signatureCount the new signature count
+     * @throws XWikiException when failing to save the user profile
+     */
+    public void updateSignatureCount(String username, ByteArray credentialId, long signatureCount)
+        throws XWikiException
+    {
+        updateSignatureCounts(username, Collections.singletonMap(credentialId, signatureCount));
+    }
+
+    /**
+     * Update the signature counts of several WebAuthn credentials stored in the profile of a standard XWiki user,
+     * with a single save of the profile.
+     *
+     * @param username the name of the standard XWiki user
+     * @param signatureCounts the new signature counts, indexed by credential identifier
+     * @throws XWikiException when failing to save the user profile
+     */
+    public void updateSignatureCounts(String username, Map<ByteArray, Long> signatureCounts)
+        throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+
+        XWikiDocument modifiableDocument =
+            xcontext.getWiki().getDocument(getUserReference(username), xcontext).clone();
+
+        boolean needUpdate = false;
+        for (Map.Entry<ByteArray, Long> entry : signatureCounts.entrySet()) {
+            BaseObject xobject = getCredentialObject(modifiableDocument, entry.getKey());
+            if (xobject != null) {
+                new WebAuthnUser(xobject).setSignatureCount(entry.getValue());
+                needUpdate = true;
+            }
+        }
+
+        if (needUpdate) {
+            save(modifiableDocument, "Updated WebAuthn signature count", xcontext);
+        }
+    }
+
+    /**
+     * The credential ID is unique and stored in a short string property, so it's the only criterion needed to find
+     * the profile holding a credential. Matching also on the public key (a large text) or the signature count (which
+     * changes on every login) would only make the query more expensive.
+     */
+    private String searchCredentialDocument(String credentialId) throws QueryException
+    {
+        Query query = this.queries.createQuery("from doc.object(" + WebAuthnUser.CLASS_FULLNAME
+            + ") as webauthn where webauthn.credentialId = :credentialId", Query.XWQL);
+
+        query.bindValue("credentialId", credentialId);
+        query.setLimit(1);
+
+        List<String> documents = query.execute();
+
+        return documents.isEmpty() ? null : documents.get(0);
+    }
+
+    private BaseObject getCredentialObject(XWikiDocument userDocument, ByteArray credentialId)
+    {
+        return getCredentialObject(userDocument, credentialId.getBase64Url());
+    }
+
+    private BaseObject getCredentialObject(XWikiDocument userDocument, String id)
+    {
+        for (BaseObject xobject : userDocument.getXObjects(WebAuthnUser.CLASS_REFERENCE)) {
+            if (xobject != null && id.equals(new WebAuthnUser(xobject).getCredentialId())) {
+                return xobject;
+            }
+        }
+
+        return null;
+    }
+
+    private Optional<CredentialRegistration> toRegistration(String username, String displayName, WebAuthnUser user)
+    {
+        try {
+            ByteArray credentialId = ByteArray.fromBase64Url(user.getCredentialId());
+            ByteArray userHandle = ByteArray.fromBase64Url(user.getUserId());
+            long signatureCount = NumberUtils.toLong(user.getSignatureCount());
+            Date registrationTime = user.getRegistrationTime();
+
+            return Optional.of(CredentialRegistration.builder()
+                .userIdentity(UserIdentity.builder().name(username).displayName(displayName).id(userHandle).build())
+                .credentialNickname(Optional.ofNullable(StringUtils.defaultIfEmpty(user.getCredentialNickname(), null)))
+                .registrationTime(registrationTime != null ? registrationTime.toInstant() : Instant.EPOCH)
+                .credential(RegisteredCredential.builder()
+                    .credentialId(credentialId)
+                    .userHandle(userHandle)
+                    .publicKeyCose(ByteArray.fromBase64Url(user.getPublicKeyCose()))
+                    .signatureCount(signatureCount)
+                    .build())
+                .signatureCount(signatureCount)
+                .attestationMetadata(Optional.empty())
+                .build());
+        } catch (Base64UrlException e) {
+            this.logger.warn("Ignoring invalid WebAuthn credential [{}] of user [{}]: {}", user.getCredentialId(),
+                username, e.getMessage());
+
+            return Optional.empty();
+        }
+    }
+
+    private void save(XWikiDocument document, String comment, XWikiContext xcontext) throws XWikiException
+    {
+        long start = this.metrics.start();
+        xcontext.getWiki().saveDocument(document, comment, true, xcontext);
+        this.metrics.stop("store.save", start);
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Shared source of the random bytes used for the request identifiers, user handles and session tokens.
+ * <p>
+ * Each thread gets its own {@link SecureRandom}, seeded once from the operating system, so the threads never wait
+ * for each other. The default algorithm is {@code DRBG}, or {@code SHA1PRNG} on the JVMs without it: the default
+ * {@code NativePRNG} shares a single lock between all its instances. The algorithm can be chosen with the
+ * {@value WebAuthnConfiguration#PROP_RANDOM_ALGORITHM} configuration property.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(roles = RandomGenerator.class)
+@Singleton
+public class RandomGenerator implements Initializable
+{
+    private static final String[] DEFAULT_ALGORITHMS = {"DRBG", "SHA1PRNG"};
+
+    private static final int SEED_LENGTH = 32;
+
+    /**
+     * The operating system source, only used to seed the random generator of each thread.
+     */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private ThreadLocal<SecureRandom> randoms;
+
+    @Override
+    public void initialize()
+    {
+        String algorithm = this.configuration.getRandomAlgorithm();
+        if (StringUtils.isNotEmpty(algorithm) && !isSupported(algorithm)) {
+            this.logger.warn("Unsupported random algorithm [{}], using the default one", algorithm);
+            algorithm = null;
+        }
+
+        if (StringUtils.isEmpty(algorithm)) {
+            for (String defaultAlgorithm : DEFAULT_ALGORITHMS) {
+                if (isSupported(defaultAlgorithm)) {
+                    algorithm = defaultAlgorithm;
+                    break;
+                }
+            }
+        }
+
+        String selectedAlgorithm = StringUtils.defaultIfEmpty(algorithm, null);
+        this.randoms = ThreadLocal.withInitial(() -> newSecureRandom(selectedAlgorithm));
+    }
+
+    private static boolean isSupported(String algorithm)
+    {
+        try {
+            SecureRandom.getInstance(algorithm);
+
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    private static SecureRandom newSecureRandom(String algorithm)
+    {
+        SecureRandom random = null;
+        if (algorithm != null) {
+            try {
+                random = SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // Checked during initialization
+            }
+        }
+
+        if (random == null) {
+            return new SecureRandom();
+        }
+
+        // Seeding before the first use replaces the self-seeding of SHA1PRNG and is added to the entropy of DRBG
+        byte[] seed = new byte[SEED_LENGTH];
+        SEED_SOURCE.nextBytes(seed);
+        random.setSeed(seed);
+
+        return random;
+    }
+
+    /**
+     * @param length the number of random bytes
+     * @return new random bytes
+     */
+    public ByteArray generateRandom(int length)
+    {
+        byte[] bytes = new byte[length];
+        this.randoms.get().nextBytes(bytes);
+
+        return new ByteArray(bytes);
+    }
+}
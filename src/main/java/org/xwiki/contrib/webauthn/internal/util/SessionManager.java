@@ -19,11 +19,18 @@
  */
 package org.xwiki.contrib.webauthn.internal.util;
 
-import java.security.SecureRandom;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.yubico.webauthn.data.ByteArray;
@@ -32,19 +39,40 @@ import lombok.NonNull;
 
 /**
  * Helper to manage user sessions
+ *
+ * @version $Id$
  */
-public class SessionManager
+@Component(roles = SessionManager.class)
+@Singleton
+public class SessionManager implements Initializable
 {
-    private final SecureRandom random = new SecureRandom();
+    @Inject
+    private WebAuthnConfiguration configuration;
+
+    @Inject
+    private RandomGenerator random;
+
+    @Inject
+    private WebAuthnMetrics metrics;
 
-    private final Cache<ByteArray, ByteArray> sessionIdsToUsers = newCache();
-    private final Cache<ByteArray, ByteArray> usersToSessionIds = newCache();
+    private Cache<ByteArray, ByteArray> sessionIdsToUsers;
+    private Cache<ByteArray, ByteArray> usersToSessionIds;
+
+    @Override
+    public void initialize()
+    {
+        this.sessionIdsToUsers = newCache();
+        this.usersToSessionIds = newCache();
+
+        this.metrics.cacheMetrics("sessions", this.sessionIdsToUsers);
+    }
 
-    private static <K, V> Cache<K, V> newCache()
+    private <K, V> Cache<K, V> newCache()
     {
         return CacheBuilder.newBuilder()
-            .maximumSize(100)
-            .expireAfterAccess(5, TimeUnit.MINUTES)
+            .maximumSize(this.configuration.getSessionCapacity())
+            .expireAfterAccess(this.configuration.getSessionTimeout(), TimeUnit.SECONDS)
+            .recordStats()
             .build();
     }
 
@@ -78,9 +106,7 @@ public class SessionManager
 
     public ByteArray generateRandom(int length)
     {
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return new ByteArray(bytes);
+        return this.random.generateRandom(length);
     }
 
 }
@@ -0,0 +1,278 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.webauthn.internal.data.CredentialRegistration;
+import org.xwiki.contrib.webauthn.internal.metrics.WebAuthnMetrics;
+import org.xwiki.contrib.webauthn.internal.store.SignatureCountWriter;
+import org.xwiki.contrib.webauthn.internal.store.WebAuthnUserStore;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.UserIdentity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link RegistrationStorage}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RegistrationStorageTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final String USERNAME = "alice";
+
+    private static final ByteArray USER_HANDLE = new ByteArray(new byte[] {1, 2, 3});
+
+    private static final ByteArray CREDENTIAL_ID = new ByteArray(new byte[] {4, 5, 6});
+
+    private static final ByteArray OTHER_CREDENTIAL_ID = new ByteArray(new byte[] {10, 11, 12});
+
+    @InjectMockComponents
+    private RegistrationStorage storage;
+
+    @MockComponent
+    private WebAuthnUserStore store;
+
+    @MockComponent
+    private SignatureCountWriter signatureCountWriter;
+
+    @MockComponent
+    private ObservationManager observation;
+
+    @MockComponent
+    private WebAuthnMetrics metrics;
+
+    @MockComponent
+    private Provider<XWikiContext> xcontextProvider;
+
+    private XWikiContext xcontext;
+
+    @BeforeEach
+    void configure()
+    {
+        this.xcontext = mock(XWikiContext.class);
+        when(this.xcontextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWikiId()).thenReturn(WIKI);
+    }
+
+    private static CredentialRegistration registration(String username, ByteArray userHandle, ByteArray credentialId,
+        long signatureCount)
+    {
+        return CredentialRegistration.builder()
+            .userIdentity(UserIdentity.builder().name(username).displayName(username).id(userHandle).build())
+            .credentialNickname(Optional.empty())
+            .registrationTime(Instant.now())
+            .credential(RegisteredCredential.builder()
+                .credentialId(credentialId)
+                .userHandle(userHandle)
+                .publicKeyCose(new ByteArray(new byte[] {7, 8, 9}))
+                .signatureCount(signatureCount)
+                .build())
+            .signatureCount(signatureCount)
+            .attestationMetadata(Optional.empty())
+            .build();
+    }
+
+    @Test
+    void getUsernameForUserHandleFromIndex() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        assertEquals(Optional.of(USERNAME), this.storage.getUsernameForUserHandle(USER_HANDLE));
+        verify(this.store, never()).searchUsername(any());
+    }
+
+    @Test
+    void getUsernameForUserHandleFromOtherWiki() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        when(this.xcontext.getWikiId()).thenReturn("otherwiki");
+        when(this.store.searchUsername(USER_HANDLE)).thenReturn(Optional.empty());
+
+        assertEquals(Optional.empty(), this.storage.getUsernameForUserHandle(USER_HANDLE));
+        verify(this.store).searchUsername(USER_HANDLE);
+    }
+
+    @Test
+    void getUsernameForUserHandleAfterRemoval() throws Exception
+    {
+        CredentialRegistration registration = registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0);
+        when(this.store.getRegistrations(USERNAME)).thenReturn(Collections.singletonList(registration));
+        when(this.store.removeRegistration(USERNAME, CREDENTIAL_ID)).thenReturn(true);
+        when(this.store.searchUsername(USER_HANDLE)).thenReturn(Optional.empty());
+
+        this.storage.getRegistrationsByUsername(USERNAME);
+        assertTrue(this.storage.removeRegistrationByUsername(USERNAME, registration));
+
+        // The cached set is swapped for an empty one and the user handle leaves the index
+        assertTrue(this.storage.getRegistrationsByUsername(USERNAME).isEmpty());
+        assertEquals(Optional.empty(), this.storage.getUsernameForUserHandle(USER_HANDLE));
+        verify(this.store).searchUsername(USER_HANDLE);
+        verify(this.store, times(1)).getRegistrations(USERNAME);
+    }
+
+    @Test
+    void lookupAllFromIndex() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        Set<RegisteredCredential> credentials = this.storage.lookupAll(CREDENTIAL_ID);
+
+        assertEquals(1, credentials.size());
+        assertEquals(CREDENTIAL_ID, credentials.iterator().next().getCredentialId());
+        verify(this.store, never()).searchCredentialUsername(any());
+    }
+
+    @Test
+    void lookupAllLoadsTheUser() throws Exception
+    {
+        when(this.store.searchCredentialUsername(CREDENTIAL_ID)).thenReturn(Optional.of(USERNAME));
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+
+        assertEquals(1, this.storage.lookupAll(CREDENTIAL_ID).size());
+        assertTrue(this.storage.lookupAll(OTHER_CREDENTIAL_ID).isEmpty());
+        verify(this.store, times(1)).getRegistrations(USERNAME);
+    }
+
+    @Test
+    void addRegistrationSwapsTheCachedSet() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        DocumentReference userReference = new DocumentReference(WIKI, "XWiki", USERNAME);
+        CredentialRegistration added = registration(USERNAME, USER_HANDLE, OTHER_CREDENTIAL_ID, 0);
+        when(this.store.addRegistration(userReference, added)).thenReturn(true);
+
+        assertTrue(this.storage.addRegistration(userReference, added));
+
+        assertEquals(2, this.storage.getRegistrationsByUsername(USERNAME).size());
+        assertEquals(1, this.storage.lookupAll(OTHER_CREDENTIAL_ID).size());
+        verify(this.store, times(1)).getRegistrations(USERNAME);
+        verify(this.store, never()).searchCredentialUsername(any());
+    }
+
+    @Test
+    void reloadKeepsTheHighestSignatureCount() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME)).thenReturn(
+            Arrays.asList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 5),
+                registration(USERNAME, USER_HANDLE, OTHER_CREDENTIAL_ID, 5)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        this.storage.setSignatureCount(WIKI, USERNAME, CREDENTIAL_ID, 10);
+        // The store is not up to date yet
+        this.storage.invalidate(WIKI, USERNAME);
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        assertEquals(10, this.storage.lookupAll(CREDENTIAL_ID).iterator().next().getSignatureCount());
+        assertEquals(5, this.storage.lookupAll(OTHER_CREDENTIAL_ID).iterator().next().getSignatureCount());
+        verify(this.store, times(2)).getRegistrations(USERNAME);
+    }
+
+    @Test
+    void setSignatureCountNeverGoesBackward() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 5)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        this.storage.setSignatureCount(WIKI, USERNAME, CREDENTIAL_ID, 3);
+        assertEquals(5, this.storage.lookupAll(CREDENTIAL_ID).iterator().next().getSignatureCount());
+
+        this.storage.setSignatureCount(WIKI, USERNAME, CREDENTIAL_ID, 6);
+        assertEquals(6, this.storage.lookupAll(CREDENTIAL_ID).iterator().next().getSignatureCount());
+    }
+
+    @Test
+    void concurrentSignatureCountUpdatesKeepTheHighest() throws Exception
+    {
+        when(this.store.getRegistrations(USERNAME))
+            .thenReturn(Collections.singletonList(registration(USERNAME, USER_HANDLE, CREDENTIAL_ID, 0)));
+        this.storage.getRegistrationsByUsername(USERNAME);
+
+        int threads = 8;
+        int updates = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int thread = 0; thread < threads; ++thread) {
+                int offset = thread;
+                executor.submit(() -> {
+                    start.await();
+                    // The threads interleave their counts so that each CAS races with the others
+                    for (int i = 0; i < updates; ++i) {
+                        this.storage.setSignatureCount(WIKI, USERNAME, CREDENTIAL_ID, (long) i * threads + offset);
+                    }
+
+                    return null;
+                });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals((long) updates * threads - 1,
+            this.storage.lookupAll(CREDENTIAL_ID).iterator().next().getSignatureCount());
+    }
+}
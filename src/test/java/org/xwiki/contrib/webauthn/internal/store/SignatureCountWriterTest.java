@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.store;
+
+import java.util.Collections;
+import java.util.OptionalLong;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.yubico.webauthn.data.ByteArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link SignatureCountWriter}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class SignatureCountWriterTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final String USERNAME = "alice";
+
+    private static final ByteArray CREDENTIAL_ID = new ByteArray(new byte[] {1, 2, 3});
+
+    @InjectMockComponents
+    private SignatureCountWriter writer;
+
+    @MockComponent
+    private WebAuthnUserStore store;
+
+    @MockComponent
+    private WebAuthnConfiguration configuration;
+
+    @MockComponent
+    private Provider<XWikiContext> xcontextProvider;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager contextManager;
+
+    @MockComponent
+    private ObservationManager observation;
+
+    private XWikiContext xcontext;
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        // Keep the scheduled flush out of the way, the tests flush explicitly
+        when(this.configuration.getSignatureCountFlushDelay()).thenReturn(3600);
+    }
+
+    @BeforeEach
+    void configure()
+    {
+        this.xcontext = mock(XWikiContext.class);
+        when(this.xcontextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWikiId()).thenReturn(WIKI);
+    }
+
+    @Test
+    void updateKeepsTheHighestCount()
+    {
+        this.writer.update(USERNAME, CREDENTIAL_ID, 5);
+        this.writer.update(USERNAME, CREDENTIAL_ID, 3);
+
+        assertEquals(OptionalLong.of(5), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+    }
+
+    @Test
+    void flushSavesAndForgetsTheCount() throws Exception
+    {
+        this.writer.update(USERNAME, CREDENTIAL_ID, 5);
+
+        this.writer.flush();
+
+        verify(this.store).updateSignatureCounts(USERNAME, Collections.singletonMap(CREDENTIAL_ID, 5L));
+        verify(this.observation).notify(any(), any(), any());
+        assertEquals(OptionalLong.empty(), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+    }
+
+    @Test
+    void countStaysPendingWhileSaving() throws Exception
+    {
+        this.writer.update(USERNAME, CREDENTIAL_ID, 5);
+
+        doAnswer(invocation -> {
+            // A reload happening during the save must still see the count
+            assertEquals(OptionalLong.of(5), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+
+            // A login happening during the save
+            this.writer.update(USERNAME, CREDENTIAL_ID, 8);
+
+            return null;
+        }).when(this.store).updateSignatureCounts(eq(USERNAME), anyMap());
+
+        this.writer.flush();
+
+        // The newer count was not saved yet
+        assertEquals(OptionalLong.of(8), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+    }
+
+    @Test
+    void failedFlushKeepsTheHighestCount() throws Exception
+    {
+        doThrow(new XWikiException()).when(this.store).updateSignatureCounts(eq(USERNAME), anyMap());
+
+        this.writer.update(USERNAME, CREDENTIAL_ID, 5);
+        this.writer.flush();
+
+        assertEquals(OptionalLong.of(5), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+        verify(this.observation, never()).notify(any(), any(), any());
+
+        this.writer.update(USERNAME, CREDENTIAL_ID, 3);
+        assertEquals(OptionalLong.of(5), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+
+        this.writer.update(USERNAME, CREDENTIAL_ID, 7);
+        assertEquals(OptionalLong.of(7), this.writer.getPendingSignatureCount(USERNAME, CREDENTIAL_ID));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.webauthn.internal.util;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.webauthn.internal.WebAuthnConfiguration;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link RandomGenerator}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RandomGeneratorTest
+{
+    @InjectMockComponents
+    private RandomGenerator generator;
+
+    @MockComponent
+    private WebAuthnConfiguration configuration;
+
+    @SuppressWarnings("unchecked")
+    private SecureRandom getThreadRandom()
+    {
+        return ((ThreadLocal<SecureRandom>) ReflectionUtils.getFieldValue(this.generator, "randoms")).get();
+    }
+
+    @Test
+    void generateRandom()
+    {
+        byte[] first = this.generator.generateRandom(32).getBytes();
+        byte[] second = this.generator.generateRandom(32).getBytes();
+
+        assertEquals(32, first.length);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    void oneSecureRandomPerThread() throws Exception
+    {
+        SecureRandom random = getThreadRandom();
+        assertSame(random, getThreadRandom());
+        assertTrue(Arrays.asList("DRBG", "SHA1PRNG").contains(random.getAlgorithm()));
+
+        SecureRandom otherRandom = CompletableFuture.supplyAsync(this::getThreadRandom).get();
+        assertNotSame(random, otherRandom);
+        assertEquals(random.getAlgorithm(), otherRandom.getAlgorithm());
+    }
+
+    @Test
+    void threadsAreSeededIndependently() throws Exception
+    {
+        // Two generators of the same algorithm seeded the same way would produce the same bytes
+        byte[] bytes = this.generator.generateRandom(32).getBytes();
+        byte[] otherBytes = CompletableFuture.supplyAsync(() -> this.generator.generateRandom(32).getBytes()).get();
+
+        assertFalse(Arrays.equals(bytes, otherBytes));
+    }
+
+    @Test
+    void configuredAlgorithm()
+    {
+        when(this.configuration.getRandomAlgorithm()).thenReturn("SHA1PRNG");
+        this.generator.initialize();
+
+        assertEquals("SHA1PRNG", getThreadRandom().getAlgorithm());
+    }
+
+    @Test
+    void unsupportedAlgorithmFallsBackOnTheDefault()
+    {
+        when(this.configuration.getRandomAlgorithm()).thenReturn("unknown");
+        this.generator.initialize();
+
+        assertTrue(Arrays.asList("DRBG", "SHA1PRNG").contains(getThreadRandom().getAlgorithm()));
+        assertEquals(16, this.generator.generateRandom(16).getBytes().length);
+    }
+}